@@ -1,8 +1,24 @@
-import web.handler.Handler;
+import web.cgi.CgiExecutor;
+import web.fastcgi.FastCgiPool;
+import web.fastcgi.FastCgiPools;
+import web.logging.AccessLogger;
+import web.metrics.MetricsRegistry;
+import web.resource.CompressedVariantCache;
 import web.resource.ConfigResource;
+import web.resource.ConfigWatcher;
+import web.resource.MappedFileCache;
+import web.resource.StaticFileCache;
+import web.server.configuration.HtPassword;
+import web.server.WorkerPool;
+import web.server.nio.NioEngine;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
 
 public class WebServer {
     public static void main(String[] args) throws IOException {
@@ -10,18 +26,105 @@ public class WebServer {
     }
     private static void startServer() {
         Integer port = ConfigResource.getHttpdConf().getListen().orElse(ConfigResource.getDefaultPort());
-        // Create socket using try-with-resources
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Listening on port: " + port);
-
-            while (true) {
-                Handler handler = new Handler(serverSocket.accept());
-                Thread thread = new Thread(handler);
-                thread.start();
+        String engine = ConfigResource.getHttpdConf().getEngine().orElse("blocking");
+        WorkerPool workerPool = new WorkerPool(ConfigResource.getHttpdConf());
+        // spawns configured FastCGI applications before the first request needs them
+        FastCgiPools.getInstance();
+        ConfigWatcher.start();
+        registerMetrics(workerPool);
+        try {
+            System.out.printf("Listening on port: %d (engine: %s, worker model: %s)%n", port, engine, workerPool.getModel().name().toLowerCase());
+            if (engine.equalsIgnoreCase("nio")) {
+                int eventLoops = ConfigResource.getHttpdConf().getEventLoops().orElse(Runtime.getRuntime().availableProcessors());
+                new NioEngine(port, eventLoops, workerPool).run();
+            } else {
+                runBlockingEngine(port, workerPool);
             }
         } catch (IOException e) {
             System.err.printf("Failed to open server on port (%d), exiting...%n", port);
             e.printStackTrace();
+        } finally {
+            workerPool.shutdown();
+        }
+    }
+
+    /**
+     * Exposes the counters the server components keep themselves through the metrics registry
+     */
+    private static void registerMetrics(WorkerPool workerPool) {
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.register("httpd_worker_queue_depth", "Connections or requests waiting for a worker", "gauge", workerPool::getQueueDepth);
+        metrics.register("httpd_worker_rejected_total", "Work refused with 503 because workers and queue were full", "counter", workerPool::getRejectedCount);
+        metrics.register("httpd_config_version", "Version of the configuration in effect, raised by every reload", "gauge", () -> ConfigResource.getSnapshot().getVersion());
+        metrics.register("httpd_thread_allocated_bytes", "Heap bytes allocated by the live threads of the server", "gauge", WebServer::getThreadAllocatedBytes);
+
+        StaticFileCache staticFileCache = StaticFileCache.getInstance();
+        metrics.register("httpd_static_cache_hits_total", "Static file cache hits", "counter", staticFileCache::getHitCount);
+        metrics.register("httpd_static_cache_misses_total", "Static file cache misses", "counter", staticFileCache::getMissCount);
+        metrics.register("httpd_static_cache_evictions_total", "Static files evicted from the cache", "counter", staticFileCache::getEvictionCount);
+        metrics.register("httpd_static_cache_bytes", "Bytes held by the static file cache", "gauge", staticFileCache::getCurrentBytes);
+        MappedFileCache mappedFileCache = MappedFileCache.getInstance();
+        metrics.register("httpd_mmap_hits_total", "Large static files sent from an existing mapping", "counter", mappedFileCache::getHitCount);
+        metrics.register("httpd_mmap_misses_total", "Large static files that had to be mapped", "counter", mappedFileCache::getMissCount);
+        metrics.register("httpd_mmap_evictions_total", "Mappings evicted to stay within MmapMaxBytes", "counter", mappedFileCache::getEvictionCount);
+        metrics.register("httpd_mmap_bytes", "Bytes of static files mapped, including evicted mappings still being sent", "gauge", mappedFileCache::getMappedBytes);
+        CompressedVariantCache compressedVariantCache = CompressedVariantCache.getInstance();
+        metrics.register("httpd_compressed_cache_hits_total", "Compressed variant cache hits", "counter", compressedVariantCache::getHitCount);
+        metrics.register("httpd_compressed_cache_misses_total", "Compressed variant cache misses", "counter", compressedVariantCache::getMissCount);
+        metrics.register("httpd_compressed_cache_bytes", "Bytes held by the compressed variant cache", "gauge", compressedVariantCache::getCurrentBytes);
+        metrics.register("httpd_auth_verifications_total", "Passwords hashed and compared", "counter", HtPassword::getVerifyCount);
+        metrics.register("httpd_auth_verification_seconds_total", "Time spent hashing and comparing passwords", "counter",
+                () -> HtPassword.getVerifyNanos() / 1e9);
+        metrics.register("httpd_auth_cache_hits_total", "Requests authorized from the verified credential cache", "counter", HtPassword::getCacheHitCount);
+
+        AccessLogger accessLogger = AccessLogger.getInstance();
+        metrics.register("httpd_access_log_queue_depth", "Access log records waiting for the writer", "gauge", accessLogger::getQueueDepth);
+        metrics.register("httpd_access_log_dropped_total", "Access log records dropped because the buffer was full", "counter", accessLogger::getDroppedCount);
+
+        CgiExecutor cgiExecutor = CgiExecutor.getInstance();
+        metrics.register("httpd_cgi_spawns_total", "CGI processes started", "counter", cgiExecutor::getSpawnCount);
+        metrics.register("httpd_cgi_rejected_total", "CGI requests refused because the process limits were reached", "counter", cgiExecutor::getRejectedCount);
+        metrics.register("httpd_cgi_timeouts_total", "CGI processes killed for exceeding CgiTimeout", "counter", cgiExecutor::getTimeoutCount);
+        metrics.register("httpd_cgi_running", "CGI processes running", "gauge", cgiExecutor::getRunningCount);
+        metrics.register("httpd_cgi_exits_total", "Finished CGI processes by exit code", "counter", "code", cgiExecutor::getExitCodeCounts);
+
+        Map<String, FastCgiPool> fastCgiPools = FastCgiPools.getInstance().getPools();
+        if (!fastCgiPools.isEmpty()) {
+            metrics.register("httpd_fastcgi_idle_connections", "Idle FastCGI connections", "gauge", "alias",
+                    () -> mapValues(fastCgiPools, FastCgiPool::getIdleConnectionCount));
+            metrics.register("httpd_fastcgi_restarts_total", "FastCGI application restarts", "counter", "alias",
+                    () -> mapValues(fastCgiPools, FastCgiPool::getRestartCount));
+            metrics.register("httpd_fastcgi_failed_health_checks_total", "Failed FastCGI health checks", "counter", "alias",
+                    () -> mapValues(fastCgiPools, FastCgiPool::getFailedHealthCheckCount));
+        }
+    }
+
+    /**
+     * @return bytes allocated by the threads alive now, threads that ended take their count with them
+     */
+    private static long getThreadAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            allocated += Math.max(0, bytes);
+        }
+        return allocated;
+    }
+
+    private static <T> Map<String, Long> mapValues(Map<String, T> pools, ToLongFunction<T> value) {
+        Map<String, Long> values = new HashMap<>();
+        pools.forEach((alias, pool) -> values.put(alias, value.applyAsLong(pool)));
+        return values;
+    }
+
+    private static void runBlockingEngine(Integer port, WorkerPool workerPool) throws IOException {
+        // Create socket using try-with-resources
+        // accepting through a channel gives every socket a SocketChannel, which static files are sent through with sendfile
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            while (true) {
+                workerPool.submit(serverChannel.accept().socket());
+            }
         }
     }
 }
@@ -0,0 +1,195 @@
+package web.authorization;
+
+import web.resource.ConfigResource;
+import web.server.configuration.HtAccess;
+import web.server.configuration.HtPassword;
+import web.server.configuration.utils.ConfigurationReader;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Shared cache of parsed .htaccess and AuthUserFile (htpasswd) files, keyed by absolute path.
+ * <p>
+ * Missing files are cached too, so a directory without .htaccess is remembered as unprotected.
+ * AuthCacheMode selects how entries are invalidated:
+ * - watch (default): the directories holding cached files are registered with a WatchService and
+ * entries are dropped when the file is created, modified or deleted, a lookup does no file I/O at all
+ * - mtime: every lookup compares the file's modification time (one stat) with the cached one
+ * If a directory cannot be watched its entries fall back to mtime validation.
+ */
+public final class AuthFileCache {
+
+    public enum Mode {
+        WATCH,
+        MTIME
+    }
+
+    private static final AuthFileCache INSTANCE = new AuthFileCache(ConfigResource.getHttpdConf().getAuthCacheMode().orElse("watch"));
+
+    private static final class Entry<T> {
+        // null when the file does not exist
+        private final T value;
+        private final long modifiedMillis;
+        private final boolean watched;
+
+        private Entry(T value, long modifiedMillis, boolean watched) {
+            this.value = value;
+            this.modifiedMillis = modifiedMillis;
+            this.watched = watched;
+        }
+    }
+
+    private final Mode mode;
+    private final Map<Path, Entry<HtAccess>> htAccessEntries = new ConcurrentHashMap<>();
+    private final Map<Path, Entry<HtPassword>> htPasswordEntries = new ConcurrentHashMap<>();
+    private final Map<Path, Boolean> watchedDirectories = new ConcurrentHashMap<>();
+    private final WatchService watchService;
+    // bumped by the watcher before it drops entries, an entry read while it moved may already be stale
+    private final AtomicLong watchGeneration = new AtomicLong();
+
+    private AuthFileCache(String mode) {
+        Mode selectedMode = Mode.WATCH;
+        try {
+            selectedMode = Mode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Warning: AuthFileCache: Unrecognized auth cache mode %s, using watch%n", mode);
+        }
+        WatchService service = null;
+        if (selectedMode == Mode.WATCH) {
+            try {
+                service = FileSystems.getDefault().newWatchService();
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("Warning: AuthFileCache: File watching is not available, using mtime");
+                selectedMode = Mode.MTIME;
+            }
+        }
+        this.mode = selectedMode;
+        this.watchService = service;
+        if (this.watchService != null) {
+            Thread watcher = new Thread(this::watchLoop, "auth-file-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    public static AuthFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param path path of a .htaccess file
+     * @return the parsed file, or null if there is no such file
+     * @throws IOException if the file exists but cannot be read
+     */
+    public HtAccess getHtAccess(Path path) throws IOException {
+        return this.get(this.htAccessEntries, path, HtAccess::new);
+    }
+
+    /**
+     * @param path path of an AuthUserFile
+     * @return the parsed file, a missing file yields a HtPassword without users
+     * @throws IOException if the file exists but cannot be read
+     */
+    public HtPassword getHtPassword(Path path) throws IOException {
+        HtPassword htPassword = this.get(this.htPasswordEntries, path, HtPassword::new);
+        return htPassword != null ? htPassword : new HtPassword(List.of());
+    }
+
+    /**
+     * Drops the cached .htaccess files matching the filter, e.g. those a configuration reload stopped serving
+     * @param filter selects the absolute paths to drop
+     */
+    public void invalidateIf(Predicate<Path> filter) {
+        this.htAccessEntries.keySet().removeIf(filter);
+    }
+
+    private <T> T get(Map<Path, Entry<T>> entries, Path path, Function<List<String>, T> parser) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        Entry<T> entry = entries.get(key);
+        if (entry != null && (entry.watched || entry.modifiedMillis == modifiedMillis(key))) {
+            return entry.value;
+        }
+
+        // the directory is watched before the file is read so a change made while reading still invalidates the entry
+        boolean watched = this.watch(key.getParent());
+        long generation = this.watchGeneration.get();
+        long modifiedMillis = modifiedMillis(key);
+        T value = modifiedMillis == 0 ? null : parser.apply(ConfigurationReader.readConfiguration(key.toString()));
+        Entry<T> newEntry = new Entry<>(value, modifiedMillis, watched);
+        entries.put(key, newEntry);
+        // an event handled between the read and the put removed nothing, the next lookup reads the file again
+        if (watched && this.watchGeneration.get() != generation) {
+            entries.remove(key, newEntry);
+        }
+        return value;
+    }
+
+    private boolean watch(Path directory) {
+        if (this.mode != Mode.WATCH || directory == null) {
+            return false;
+        }
+        if (this.watchedDirectories.containsKey(directory)) {
+            return true;
+        }
+        try {
+            directory.register(this.watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            this.watchedDirectories.put(directory, Boolean.TRUE);
+            return true;
+        } catch (IOException e) {
+            // e.g. the directory does not exist (yet), entries for it are validated by mtime instead
+            return false;
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = this.watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) watchKey.watchable();
+            this.watchGeneration.incrementAndGet();
+            for (WatchEvent<?> event : watchKey.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // events were lost, nothing cached can be trusted
+                    this.htAccessEntries.clear();
+                    this.htPasswordEntries.clear();
+                    continue;
+                }
+                Path changed = directory.resolve((Path) event.context());
+                this.htAccessEntries.remove(changed);
+                this.htPasswordEntries.remove(changed);
+            }
+            if (!watchKey.reset()) {
+                // directory is gone, forget it and everything cached below it
+                this.watchedDirectories.remove(directory);
+                this.htAccessEntries.keySet().removeIf(path -> directory.equals(path.getParent()));
+                this.htPasswordEntries.keySet().removeIf(path -> directory.equals(path.getParent()));
+            }
+        }
+    }
+
+    // File.lastModified returns 0 for missing files, so existence and mtime cost a single stat
+    private static long modifiedMillis(Path path) {
+        return path.toFile().lastModified();
+    }
+}
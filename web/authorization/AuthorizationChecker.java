@@ -4,10 +4,10 @@ import web.request.HttpRequest;
 import web.request.Header;
 import web.server.configuration.HtAccess;
 import web.server.configuration.HtPassword;
-import web.server.configuration.utils.ConfigurationReader;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Map;
 import java.util.Optional;
 
@@ -21,14 +21,13 @@ public class AuthorizationChecker {
     private HtAccess htAccess;
     private String checkedUser;
     /**
-     * AuthorizationChecker constructor: creates respective HtAccess object in order to parse authentication.
+     * AuthorizationChecker constructor: looks up the respective HtAccess object in order to parse authentication.
+     * Parsed files come from the shared {@link AuthFileCache}, so unchanged files are not read again.
      * @param htAccessPath A path to the htAccess file which must be included in the file system for authentication.
      */
     public AuthorizationChecker(Path htAccessPath) {
         try {
-            if (htAccessPath.toFile().exists()) {
-                this.htAccess = new HtAccess(ConfigurationReader.readConfiguration(htAccessPath.toString()));
-            }
+            this.htAccess = AuthFileCache.getInstance().getHtAccess(htAccessPath);
         } catch (IOException ignored) {}
     }
 
@@ -49,16 +48,18 @@ public class AuthorizationChecker {
                     if (authorization == null || authorization.isEmpty()) {
                         return AuthorizationResult.MISSING_AUTH;
                     }
+                    HtPassword htPassword = AuthFileCache.getInstance().getHtPassword(Paths.get(htAccessConfiguration.get("AuthUserFile")));
+                    String user = htPassword.getAuthorizedUser(authorization);
+                    if (user != null) {
+                        this.checkedUser = user;
+                        return AuthorizationResult.VALID;
+                    }
+                    // rejected credentials are rare, only they are decoded again to log the user name
                     String[] tokenizedAuthInfo = HtPassword.tokenizeAuthInfo(authorization);
                     if (tokenizedAuthInfo.length >= 1) {
                         this.checkedUser = tokenizedAuthInfo[0];
                     }
-                    HtPassword htPassword = new HtPassword(ConfigurationReader.readConfiguration(htAccessConfiguration.get("AuthUserFile")));
-                    if (htPassword.isAuthorized(authorization)) {
-                        return AuthorizationResult.VALID;
-                    } else {
-                        return AuthorizationResult.INVALID;
-                    }
+                    return AuthorizationResult.INVALID;
                 }
                 default -> {
                     System.out.format("Warning: Unsupported auth type %s", htAccessConfiguration.get("AuthType"));
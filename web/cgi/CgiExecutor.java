@@ -0,0 +1,158 @@
+package web.cgi;
+
+import web.resource.ConfigResource;
+import web.server.configuration.HttpdConf;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs CGI scripts as child processes.
+ * <p>
+ * The number of scripts running at once is capped globally (CgiMaxProcesses) and per ScriptAlias
+ * (CgiMaxProcessesPerAlias), a request finding no free slot is not queued but refused so the caller can
+ * answer 503. Request bodies are written to stdin and stderr is drained on pump threads while the
+ * handler reads stdout, so no pipe can fill up and block the script. Scripts running longer than
+ * CgiTimeout seconds are killed.
+ */
+public final class CgiExecutor {
+
+    private static final int DEFAULT_TIMEOUT = 60;
+    private static final int DEFAULT_MAX_PROCESSES = 64;
+
+    private static final CgiExecutor INSTANCE = new CgiExecutor(ConfigResource.getHttpdConf());
+
+    private final long timeoutMillis;
+    private final int maxProcesses;
+    private final int maxProcessesPerAlias;
+    private final Semaphore processPermits;
+    private final Map<String, Semaphore> aliasPermits = new ConcurrentHashMap<>();
+    private final ExecutorService pumps = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "cgi-pump");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cgi-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder spawnCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder timeoutCount = new LongAdder();
+    private final LongAdder durationNanos = new LongAdder();
+    private final Map<Integer, LongAdder> exitCodeCounts = new ConcurrentHashMap<>();
+
+    private CgiExecutor(HttpdConf httpdConf) {
+        this.timeoutMillis = httpdConf.getCgiTimeout().orElse(DEFAULT_TIMEOUT) * 1000L;
+        this.maxProcesses = httpdConf.getCgiMaxProcesses().orElse(DEFAULT_MAX_PROCESSES);
+        this.maxProcessesPerAlias = httpdConf.getCgiMaxProcessesPerAlias().orElse(this.maxProcesses);
+        this.processPermits = new Semaphore(this.maxProcesses);
+    }
+
+    public static CgiExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts a script if both the global and the alias' limit leave room for it
+     * @param scriptAlias ScriptAlias the script was resolved through
+     * @param processBuilder command and environment of the script
+     * @return the running script, null if too many scripts are running already
+     * @throws IOException if the process cannot be started
+     */
+    public CgiProcess start(String scriptAlias, ProcessBuilder processBuilder) throws IOException {
+        Semaphore aliasPermit = this.aliasPermits.computeIfAbsent(scriptAlias, alias -> new Semaphore(this.maxProcessesPerAlias));
+        if (!aliasPermit.tryAcquire()) {
+            this.rejectedCount.increment();
+            return null;
+        }
+        if (!this.processPermits.tryAcquire()) {
+            aliasPermit.release();
+            this.rejectedCount.increment();
+            return null;
+        }
+        try {
+            Process process = processBuilder.start();
+            this.spawnCount.increment();
+            return new CgiProcess(this, process, aliasPermit, this.timeoutMillis);
+        } catch (IOException | RuntimeException e) {
+            this.release(aliasPermit);
+            throw e;
+        }
+    }
+
+    ExecutorService getPumps() {
+        return this.pumps;
+    }
+
+    ScheduledExecutorService getWatchdog() {
+        return this.watchdog;
+    }
+
+    void release(Semaphore aliasPermit) {
+        aliasPermit.release();
+        this.processPermits.release();
+    }
+
+    void recordTimeout() {
+        this.timeoutCount.increment();
+    }
+
+    void recordExit(int exitCode, long nanos) {
+        this.exitCodeCounts.computeIfAbsent(exitCode, code -> new LongAdder()).increment();
+        this.durationNanos.add(nanos);
+    }
+
+    /**
+     * @return number of scripts started
+     */
+    public long getSpawnCount() {
+        return this.spawnCount.sum();
+    }
+
+    /**
+     * @return number of requests refused because the process limits were reached
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    /**
+     * @return number of scripts killed for running longer than CgiTimeout
+     */
+    public long getTimeoutCount() {
+        return this.timeoutCount.sum();
+    }
+
+    /**
+     * @return total run time of finished scripts in nanoseconds
+     */
+    public long getDurationNanos() {
+        return this.durationNanos.sum();
+    }
+
+    /**
+     * @return number of finished scripts by exit code, a killed script counts with the code it was killed with
+     */
+    public Map<Integer, Long> getExitCodeCounts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        this.exitCodeCounts.forEach((exitCode, count) -> counts.put(exitCode, count.sum()));
+        return counts;
+    }
+
+    /**
+     * @return number of scripts running right now
+     */
+    public int getRunningCount() {
+        return this.maxProcesses - this.processPermits.availablePermits();
+    }
+}
@@ -0,0 +1,183 @@
+package web.cgi;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A running CGI script started by {@link CgiExecutor}, closing it frees its process slot.
+ * <p>
+ * Standard output is read by the caller, standard input and standard error are served by pump threads.
+ * When the script is killed for running too long, reading its output fails instead of ending normally,
+ * so a response already on its way is aborted rather than passed off as complete.
+ */
+public class CgiProcess implements AutoCloseable {
+
+    // a script that closed its output is given this long to exit before it is killed
+    private static final long EXIT_GRACE_MILLIS = 1_000;
+    private static final int PUMP_BUFFER_SIZE = 8 * 1024;
+
+    private final CgiExecutor executor;
+    private final Process process;
+    private final Semaphore aliasPermit;
+    private final long startNanos = System.nanoTime();
+    private final ScheduledFuture<?> timeout;
+    private final Output output;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean timedOut;
+    private Future<?> inputPump;
+
+    CgiProcess(CgiExecutor executor, Process process, Semaphore aliasPermit, long timeoutMillis) {
+        this.executor = executor;
+        this.process = process;
+        this.aliasPermit = aliasPermit;
+        this.output = new Output(process.getInputStream());
+        this.timeout = executor.getWatchdog().schedule(this::kill, timeoutMillis, TimeUnit.MILLISECONDS);
+        executor.getPumps().execute(this::pumpError);
+    }
+
+    /**
+     * Writes the request body to the script's standard input on a pump thread and closes it afterwards
+     * @param body request body, null if there is none
+     */
+    public void pumpInput(InputStream body) {
+        if (body == null) {
+            closeQuietly(this.process.getOutputStream());
+            return;
+        }
+        this.inputPump = this.executor.getPumps().submit(() -> {
+            try (OutputStream stdin = this.process.getOutputStream()) {
+                body.transferTo(stdin);
+            } catch (IOException ignored) {
+                // the script exited without reading all of its input, the caller discards the rest
+            }
+        });
+    }
+
+    /**
+     * @return the script's standard output
+     */
+    public InputStream getOutput() {
+        return this.output;
+    }
+
+    /**
+     * @return TRUE if the script was killed for exceeding CgiTimeout
+     */
+    public boolean isTimedOut() {
+        return this.timedOut;
+    }
+
+    /**
+     * Waits for the input pump, so the request body is no longer read concurrently, ends the script
+     * if it is still running and records its exit
+     */
+    @Override
+    public void close() {
+        if (!this.closed.compareAndSet(false, true)) {
+            return;
+        }
+        this.timeout.cancel(false);
+        try {
+            // output that was read to its end normally means the script is about to exit by itself
+            if (this.output.isFinished()) {
+                this.process.waitFor(EXIT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            if (this.process.isAlive()) {
+                this.destroy();
+            }
+            closeQuietly(this.process.getOutputStream());
+            if (this.inputPump != null) {
+                this.inputPump.get();
+            }
+            this.executor.recordExit(this.process.waitFor(), System.nanoTime() - this.startNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(this.output);
+            this.executor.release(this.aliasPermit);
+        }
+    }
+
+    private void kill() {
+        if (this.process.isAlive()) {
+            this.timedOut = true;
+            this.executor.recordTimeout();
+            System.out.printf("Warning: CGI script %s exceeded its timeout and was killed%n",
+                    this.process.info().command().orElse(String.valueOf(this.process.pid())));
+            this.destroy();
+        }
+    }
+
+    /**
+     * Kills the script together with the processes it started, they would keep its output open otherwise
+     */
+    private void destroy() {
+        this.process.descendants().forEach(ProcessHandle::destroyForcibly);
+        this.process.destroyForcibly();
+    }
+
+    private void pumpError() {
+        byte[] buffer = new byte[PUMP_BUFFER_SIZE];
+        try (InputStream stderr = this.process.getErrorStream()) {
+            int read;
+            while ((read = stderr.read(buffer)) != -1) {
+                System.err.print(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+        } catch (IOException ignored) {
+            // the process was destroyed
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {}
+    }
+
+    /**
+     * Standard output, turns the end of a killed script's output into an error
+     */
+    private class Output extends FilterInputStream {
+
+        private volatile boolean finished;
+
+        Output(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return this.checkEnd(super.read());
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return this.checkEnd(super.read(b, off, len));
+        }
+
+        private int checkEnd(int read) throws IOException {
+            if (read == -1) {
+                if (CgiProcess.this.timedOut) {
+                    throw new IOException("CGI script was killed after exceeding its timeout");
+                }
+                this.finished = true;
+            }
+            return read;
+        }
+
+        boolean isFinished() {
+            return this.finished;
+        }
+    }
+}
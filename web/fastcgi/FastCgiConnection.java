@@ -0,0 +1,386 @@
+package web.fastcgi;
+
+import web.server.nio.ChannelInputStream;
+import web.server.nio.ChannelOutputStream;
+import web.server.nio.TemporarySelectors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Client side of one connection to a FastCGI application, carrying one request at a time.
+ * <p>
+ * Requests are sent with FCGI_KEEP_CONN so the connection can be reused once the application has
+ * ended the request. The response is exposed as the stream of its FCGI_STDOUT records, FCGI_STDERR
+ * output is copied to the server's error stream. The request body is sent as FCGI_STDIN records on a
+ * pump thread while the response is read, so an application answering before it has read all of its
+ * input cannot deadlock with the server.
+ */
+public class FastCgiConnection implements Closeable {
+
+    private static final int VERSION = 1;
+    private static final int BEGIN_REQUEST = 1;
+    private static final int END_REQUEST = 3;
+    private static final int PARAMS = 4;
+    private static final int STDIN = 5;
+    private static final int STDOUT = 6;
+    private static final int STDERR = 7;
+    private static final int GET_VALUES = 9;
+    private static final int GET_VALUES_RESULT = 10;
+    private static final int RESPONDER = 1;
+    private static final int KEEP_CONN = 1;
+    private static final int REQUEST_COMPLETE = 0;
+    private static final int REQUEST_ID = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_CONTENT_LENGTH = 65535;
+    private static final int STDIN_CHUNK_SIZE = 32 * 1024;
+    private static final List<String> PROBED_VALUES = List.of("FCGI_MAX_CONNS", "FCGI_MAX_REQS", "FCGI_MPXS_CONNS");
+    // an application that ended the request is given this long to take the rest of the request body
+    private static final long INPUT_GRACE_MILLIS = 1_000;
+
+    private static final ExecutorService STDIN_PUMPS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fastcgi-stdin");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final SocketChannel channel;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private boolean reusable;
+    private Future<?> inputPump;
+    private volatile boolean inputFailed;
+    // checked by the pump between records, it is never interrupted as it may be reading the client's connection
+    private volatile boolean inputStopped;
+
+    private FastCgiConnection(SocketChannel channel, long timeoutMillis) {
+        this.channel = channel;
+        this.input = new DataInputStream(new BufferedInputStream(new ChannelInputStream(channel, timeoutMillis), STDIN_CHUNK_SIZE));
+        this.output = new BufferedOutputStream(new ChannelOutputStream(channel, timeoutMillis), STDIN_CHUNK_SIZE + HEADER_SIZE);
+    }
+
+    /**
+     * @param address TCP or Unix domain socket address of the application
+     * @param connectTimeoutMillis how long connecting may take
+     * @param timeoutMillis how long a single read or write may wait
+     * @return the connected connection
+     * @throws IOException if the application cannot be reached
+     */
+    static FastCgiConnection open(SocketAddress address, long connectTimeoutMillis, long timeoutMillis) throws IOException {
+        SocketChannel channel = address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (!channel.connect(address)) {
+                TemporarySelectors.await(channel, SelectionKey.OP_CONNECT, connectTimeoutMillis);
+                channel.finishConnect();
+            }
+            return new FastCgiConnection(channel, timeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request, its body is sent on a pump thread until {@link #endRequest()}
+     * @param params CGI environment of the request
+     * @param body request body, null if there is none
+     * @return the application's standard output, ends when the application ends the request
+     * @throws IOException if the connection fails
+     */
+    public InputStream execute(Map<String, String> params, InputStream body) throws IOException {
+        this.reusable = false;
+        this.inputFailed = false;
+        this.inputStopped = false;
+        this.writeRecord(BEGIN_REQUEST, REQUEST_ID, new byte[]{0, RESPONDER, KEEP_CONN, 0, 0, 0, 0, 0}, 0, 8);
+        byte[] encodedParams = encodeNameValuePairs(params);
+        for (int offset = 0; offset < encodedParams.length; offset += MAX_CONTENT_LENGTH) {
+            this.writeRecord(PARAMS, REQUEST_ID, encodedParams, offset, Math.min(MAX_CONTENT_LENGTH, encodedParams.length - offset));
+        }
+        this.writeRecord(PARAMS, REQUEST_ID, encodedParams, 0, 0);
+        if (body == null) {
+            this.writeRecord(STDIN, REQUEST_ID, encodedParams, 0, 0);
+            this.output.flush();
+        } else {
+            this.output.flush();
+            this.inputPump = STDIN_PUMPS.submit(() -> this.pumpInput(body));
+        }
+        return new StandardOutputStream();
+    }
+
+    /**
+     * Ends the current request. Waits for the request body to be sent, so it is no longer read
+     * concurrently, and stops sending it if the application does not take it after answering: the pump
+     * stops after the record it is reading or writing, and the connection to the application is closed
+     * so a write waiting for the application fails instead of waiting out the timeout.
+     * @return TRUE if the request was completed by the application and the connection can carry the next one
+     */
+    public boolean endRequest() {
+        if (this.inputPump == null) {
+            return this.reusable;
+        }
+        boolean interrupted = false;
+        try {
+            // a response read to its end means the application is done, it only has the rest of its input to take
+            if (this.reusable) {
+                this.inputPump.get(INPUT_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            this.reusable = false;
+        } catch (ExecutionException | TimeoutException e) {
+            this.reusable = false;
+        }
+        if (!this.inputPump.isDone()) {
+            // the rest of the body is discarded by the caller, the connection carries half a request and is torn down
+            this.inputStopped = true;
+            this.reusable = false;
+            this.close();
+        }
+        while (true) {
+            try {
+                this.inputPump.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                this.inputFailed = true;
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        this.inputPump = null;
+        return this.reusable && !this.inputFailed;
+    }
+
+    private void pumpInput(InputStream body) {
+        byte[] chunk = new byte[STDIN_CHUNK_SIZE];
+        try {
+            int read;
+            // the body stream ends after Content-Length bytes, the client's connection is never read past it
+            while (!this.inputStopped && (read = body.read(chunk)) != -1) {
+                if (read > 0) {
+                    this.writeRecord(STDIN, REQUEST_ID, chunk, 0, read);
+                }
+            }
+            if (this.inputStopped) {
+                return;
+            }
+            this.writeRecord(STDIN, REQUEST_ID, chunk, 0, 0);
+            this.output.flush();
+        } catch (IOException e) {
+            // the application stopped reading or the client went away, the connection is not reused
+            this.inputFailed = true;
+        }
+    }
+
+    /**
+     * Asks the application for its limits with FCGI_GET_VALUES, used as a health check
+     * @return the values the application reported
+     * @throws IOException if the application does not answer properly in time
+     */
+    Map<String, String> probe() throws IOException {
+        Map<String, String> query = new HashMap<>();
+        for (String name : PROBED_VALUES) {
+            query.put(name, "");
+        }
+        byte[] encodedQuery = encodeNameValuePairs(query);
+        this.writeRecord(GET_VALUES, 0, encodedQuery, 0, encodedQuery.length);
+        this.output.flush();
+        while (true) {
+            int contentLength = this.readHeader();
+            byte[] content = this.readContent(contentLength);
+            if (this.header[1] == GET_VALUES_RESULT) {
+                return decodeNameValuePairs(content);
+            }
+        }
+    }
+
+    /**
+     * @return FALSE if the application closed the connection while it was idle
+     */
+    boolean isOpen() {
+        if (!this.channel.isOpen()) {
+            return false;
+        }
+        try {
+            // an idle connection has nothing to read, end of stream means the application hung up
+            return this.channel.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void writeRecord(int type, int requestId, byte[] content, int offset, int length) throws IOException {
+        this.output.write(new byte[]{
+                VERSION, (byte) type,
+                (byte) (requestId >> 8), (byte) requestId,
+                (byte) (length >> 8), (byte) length,
+                0, 0
+        });
+        this.output.write(content, offset, length);
+    }
+
+    /**
+     * Reads a record header
+     * @return content length of the record, its padding is skipped by {@link #skipPadding()}
+     */
+    private int readHeader() throws IOException {
+        this.input.readFully(this.header);
+        if (this.header[0] != VERSION) {
+            throw new IOException("Unsupported FastCGI version " + this.header[0]);
+        }
+        return ((this.header[4] & 0xff) << 8) | (this.header[5] & 0xff);
+    }
+
+    private byte[] readContent(int contentLength) throws IOException {
+        byte[] content = new byte[contentLength];
+        this.input.readFully(content);
+        this.skipPadding();
+        return content;
+    }
+
+    private void skipPadding() throws IOException {
+        this.input.skipNBytes(this.header[6] & 0xff);
+    }
+
+    private static byte[] encodeNameValuePairs(Map<String, String> pairs) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            byte[] name = pair.getKey().getBytes(StandardCharsets.ISO_8859_1);
+            byte[] value = pair.getValue().getBytes(StandardCharsets.ISO_8859_1);
+            encodeLength(encoded, name.length);
+            encodeLength(encoded, value.length);
+            encoded.writeBytes(name);
+            encoded.writeBytes(value);
+        }
+        return encoded.toByteArray();
+    }
+
+    // lengths below 128 take one byte, longer ones four with the high bit set
+    private static void encodeLength(ByteArrayOutputStream encoded, int length) {
+        if (length < 128) {
+            encoded.write(length);
+        } else {
+            encoded.write((length >> 24) | 0x80);
+            encoded.write(length >> 16);
+            encoded.write(length >> 8);
+            encoded.write(length);
+        }
+    }
+
+    private static Map<String, String> decodeNameValuePairs(byte[] content) {
+        Map<String, String> pairs = new HashMap<>();
+        int[] position = {0};
+        while (position[0] < content.length) {
+            int nameLength = decodeLength(content, position);
+            int valueLength = decodeLength(content, position);
+            String name = new String(content, position[0], nameLength, StandardCharsets.ISO_8859_1);
+            String value = new String(content, position[0] + nameLength, valueLength, StandardCharsets.ISO_8859_1);
+            position[0] += nameLength + valueLength;
+            pairs.put(name, value);
+        }
+        return pairs;
+    }
+
+    private static int decodeLength(byte[] content, int[] position) {
+        int first = content[position[0]++] & 0xff;
+        if (first < 128) {
+            return first;
+        }
+        int length = ((first & 0x7f) << 24) | ((content[position[0]] & 0xff) << 16)
+                | ((content[position[0] + 1] & 0xff) << 8) | (content[position[0] + 2] & 0xff);
+        position[0] += 3;
+        return length;
+    }
+
+    /**
+     * Content of the FCGI_STDOUT records of the current request
+     */
+    private class StandardOutputStream extends InputStream {
+        private int remaining;
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int read = this.read(single, 0, 1);
+            return read == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (this.remaining == 0) {
+                if (this.ended) {
+                    return -1;
+                }
+                this.nextRecord();
+            }
+            int read = FastCgiConnection.this.input.read(b, off, Math.min(len, this.remaining));
+            if (read == -1) {
+                throw new EOFException("FastCGI application closed the connection mid-record");
+            }
+            this.remaining -= read;
+            if (this.remaining == 0) {
+                FastCgiConnection.this.skipPadding();
+            }
+            return read;
+        }
+
+        private void nextRecord() throws IOException {
+            int contentLength = FastCgiConnection.this.readHeader();
+            switch (FastCgiConnection.this.header[1]) {
+                case STDOUT -> {
+                    // an empty record closes the stream, the request itself ends with END_REQUEST
+                    if (contentLength == 0) {
+                        FastCgiConnection.this.skipPadding();
+                    }
+                    this.remaining = contentLength;
+                }
+                case STDERR -> System.err.print(new String(FastCgiConnection.this.readContent(contentLength), StandardCharsets.UTF_8));
+                case END_REQUEST -> {
+                    byte[] body = FastCgiConnection.this.readContent(contentLength);
+                    FastCgiConnection.this.reusable = body.length >= 5 && body[4] == REQUEST_COMPLETE;
+                    this.ended = true;
+                }
+                default -> FastCgiConnection.this.readContent(contentLength);
+            }
+        }
+    }
+}
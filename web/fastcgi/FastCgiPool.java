@@ -0,0 +1,199 @@
+package web.fastcgi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connections to the FastCGI application serving one ScriptAlias.
+ * <p>
+ * At most maxConnections requests are in flight at once, idle connections are kept for reuse.
+ * When a command is configured the server spawns the application itself, the command has to make it
+ * listen on the configured address. A crashed application is started again, by the periodic health
+ * check or as soon as a request cannot connect.
+ */
+public class FastCgiPool {
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 5_000;
+    private static final long CONNECT_TIMEOUT_MILLIS = 1_000;
+    private static final long REQUEST_TIMEOUT_MILLIS = 60_000;
+    private static final long PROBE_TIMEOUT_MILLIS = 2_000;
+    private static final long CONNECT_RETRY_MILLIS = 100;
+
+    private final String alias;
+    private final SocketAddress address;
+    private final int maxConnections;
+    // null when the application is managed outside the server
+    private final List<String> command;
+    private final Semaphore permits;
+    private final Deque<FastCgiConnection> idleConnections = new ConcurrentLinkedDeque<>();
+    private Process process;
+    private final LongAdder restartCount = new LongAdder();
+    private final LongAdder failedHealthCheckCount = new LongAdder();
+
+    /**
+     * @param alias ScriptAlias the pool serves
+     * @param arguments FastCgiServer arguments after the alias: address (host:port or unix:/path),
+     *                  optional maximum number of connections and optional command spawning the application
+     */
+    FastCgiPool(String alias, List<String> arguments) {
+        this.alias = alias;
+        this.address = parseAddress(arguments.get(0));
+        this.maxConnections = arguments.size() > 1 ? Integer.parseInt(arguments.get(1)) : DEFAULT_MAX_CONNECTIONS;
+        this.command = arguments.size() > 2 ? List.of(arguments.get(2).split("\\s+")) : null;
+        this.permits = new Semaphore(this.maxConnections, true);
+        this.ensureProcess();
+    }
+
+    private static SocketAddress parseAddress(String address) {
+        if (address.startsWith("unix:")) {
+            return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+        }
+        int colon = address.lastIndexOf(':');
+        if (colon == -1) {
+            throw new IllegalArgumentException("FastCGI address must be host:port or unix:/path, got " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Takes a connection for one request, it must be handed back with {@link #release(FastCgiConnection, boolean)}
+     * @return an idle or newly opened connection
+     * @throws IOException if all connections stay busy or the application cannot be reached
+     */
+    public FastCgiConnection acquire() throws IOException {
+        try {
+            if (!this.permits.tryAcquire(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("All FastCGI connections for " + this.alias + " are busy");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a FastCGI connection", e);
+        }
+        try {
+            FastCgiConnection connection;
+            while ((connection = this.idleConnections.pollFirst()) != null) {
+                if (connection.isOpen()) {
+                    return connection;
+                }
+                connection.close();
+            }
+            return this.connect();
+        } catch (IOException | RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param connection connection taken with {@link #acquire()}
+     * @param reusable TRUE if the request was completed and the connection can carry another one
+     */
+    public void release(FastCgiConnection connection, boolean reusable) {
+        if (reusable) {
+            this.idleConnections.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+        this.permits.release();
+    }
+
+    private FastCgiConnection connect() throws IOException {
+        long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MILLIS;
+        while (true) {
+            try {
+                return FastCgiConnection.open(this.address, CONNECT_TIMEOUT_MILLIS, REQUEST_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                // a spawned application may have crashed or still be starting up
+                if (this.command == null || System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+                this.ensureProcess();
+                try {
+                    Thread.sleep(CONNECT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private synchronized void ensureProcess() {
+        if (this.command == null || (this.process != null && this.process.isAlive())) {
+            return;
+        }
+        if (this.process != null) {
+            this.restartCount.increment();
+            System.out.printf("Warning: FastCGI application for %s exited with %d, restarting%n", this.alias, this.process.exitValue());
+        }
+        try {
+            this.process = new ProcessBuilder(this.command).inheritIO().start();
+        } catch (IOException e) {
+            System.out.printf("Warning: Could not start FastCGI application for %s: %s%n", this.alias, e.getMessage());
+        }
+    }
+
+    /**
+     * Restarts a crashed application and probes it with FCGI_GET_VALUES on a fresh connection.
+     * An application that does not answer loses its idle connections and, if spawned, is restarted.
+     */
+    void checkHealth() {
+        this.ensureProcess();
+        try (FastCgiConnection probe = FastCgiConnection.open(this.address, CONNECT_TIMEOUT_MILLIS, PROBE_TIMEOUT_MILLIS)) {
+            probe.probe();
+        } catch (IOException e) {
+            this.failedHealthCheckCount.increment();
+            System.out.printf("Warning: FastCGI health check for %s failed: %s%n", this.alias, e.getMessage());
+            FastCgiConnection connection;
+            while ((connection = this.idleConnections.pollFirst()) != null) {
+                connection.close();
+            }
+            synchronized (this) {
+                if (this.process != null && this.process.isAlive()) {
+                    this.process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    void shutdown() {
+        FastCgiConnection connection;
+        while ((connection = this.idleConnections.pollFirst()) != null) {
+            connection.close();
+        }
+        synchronized (this) {
+            if (this.process != null) {
+                this.process.destroy();
+            }
+        }
+    }
+
+    public String getAlias() {
+        return this.alias;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    public int getIdleConnectionCount() {
+        return this.idleConnections.size();
+    }
+
+    public long getRestartCount() {
+        return this.restartCount.sum();
+    }
+
+    public long getFailedHealthCheckCount() {
+        return this.failedHealthCheckCount.sum();
+    }
+}
@@ -0,0 +1,67 @@
+package web.fastcgi;
+
+import web.resource.ConfigResource;
+import web.server.configuration.HttpdConf;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FastCGI pools of all ScriptAliases configured with FastCgiServer, ScriptAliases without one keep
+ * spawning a CGI process per request. A single daemon thread runs the periodic health checks.
+ */
+public final class FastCgiPools {
+
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 10_000;
+
+    private static final FastCgiPools INSTANCE = new FastCgiPools(ConfigResource.getHttpdConf());
+
+    private final Map<String, FastCgiPool> pools = new HashMap<>();
+
+    private FastCgiPools(HttpdConf httpdConf) {
+        for (Map.Entry<String, List<String>> server : httpdConf.getFastCgiServers().orElse(Map.of()).entrySet()) {
+            try {
+                this.pools.put(server.getKey(), new FastCgiPool(server.getKey(), server.getValue()));
+            } catch (RuntimeException e) {
+                System.out.printf("Warning: FastCgiPools: Invalid FastCgiServer for %s: %s%n", server.getKey(), e.getMessage());
+            }
+        }
+        if (this.pools.isEmpty()) {
+            return;
+        }
+
+        ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fastcgi-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (FastCgiPool pool : this.pools.values()) {
+            healthChecker.scheduleWithFixedDelay(pool::checkHealth, HEALTH_CHECK_INTERVAL_MILLIS, HEALTH_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        // spawned applications must not outlive the server
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> this.pools.values().forEach(FastCgiPool::shutdown), "fastcgi-shutdown"));
+    }
+
+    public static FastCgiPools getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return pools by ScriptAlias
+     */
+    public Map<String, FastCgiPool> getPools() {
+        return Map.copyOf(this.pools);
+    }
+
+    /**
+     * @param scriptAlias ScriptAlias a request was resolved through
+     * @return the alias' pool, null if its scripts run as plain CGI
+     */
+    public FastCgiPool get(String scriptAlias) {
+        return scriptAlias == null ? null : this.pools.get(scriptAlias);
+    }
+}
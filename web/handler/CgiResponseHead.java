@@ -0,0 +1,114 @@
+package web.handler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Header block a CGI script writes ahead of its body.
+ * <p>
+ * Status sets the response status, Location without Status is a redirect (302). Other fields are
+ * passed on to the client in order, a field sent on several lines (e.g. Set-Cookie) stays on several lines,
+ * except the framing and connection fields, which the server decides itself.
+ */
+final class CgiResponseHead {
+    private static final int MAX_HEAD_SIZE = 16 * 1024;
+    private static final Set<String> HOP_BY_HOP_FIELDS = Set.of("connection", "keep-alive", "transfer-encoding", "content-length");
+
+    private final int statusCode;
+    private final List<Map.Entry<String, String>> headers;
+    private final InputStream body;
+
+    private CgiResponseHead(int statusCode, List<Map.Entry<String, String>> headers, InputStream body) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * Reads the header block from the script's output, the bytes following it are left for {@link #getBody()}
+     * @param output standard output of the script
+     * @return the parsed head
+     * @throws IOException if the output cannot be read or has no valid header block
+     */
+    static CgiResponseHead read(InputStream output) throws IOException {
+        byte[] buffer = new byte[MAX_HEAD_SIZE];
+        int length = 0;
+        int headEnd = -1;
+        int bodyStart = -1;
+        while (headEnd == -1) {
+            if (length == buffer.length) {
+                throw new IOException("CGI header block exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            int read = output.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                throw new IOException("CGI output ended before the end of its header block");
+            }
+            int scanFrom = Math.max(0, length - 2);
+            length += read;
+            for (int i = scanFrom; i < length && headEnd == -1; i++) {
+                // the block ends with an empty line, LF or CRLF terminated
+                if (buffer[i] == '\n' && i + 1 < length && buffer[i + 1] == '\n') {
+                    headEnd = i;
+                    bodyStart = i + 2;
+                } else if (buffer[i] == '\n' && i + 2 < length && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') {
+                    headEnd = i;
+                    bodyStart = i + 3;
+                }
+            }
+        }
+
+        int statusCode = 200;
+        boolean hasStatus = false;
+        List<Map.Entry<String, String>> headers = new ArrayList<>();
+        for (String line : new String(buffer, 0, headEnd, StandardCharsets.ISO_8859_1).split("\n")) {
+            line = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("Malformed CGI header line: " + line);
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Status")) {
+                try {
+                    statusCode = Integer.parseInt(value.split(" ", 2)[0]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed CGI status: " + value);
+                }
+                hasStatus = true;
+            } else if (!HOP_BY_HOP_FIELDS.contains(name.toLowerCase())) {
+                headers.add(Map.entry(name, value));
+            }
+        }
+        if (!hasStatus && headers.stream().anyMatch(header -> header.getKey().equalsIgnoreCase("Location"))) {
+            statusCode = 302;
+        }
+
+        InputStream body = new SequenceInputStream(new ByteArrayInputStream(buffer, bodyStart, length - bodyStart), output);
+        return new CgiResponseHead(statusCode, headers, body);
+    }
+
+    int getStatusCode() {
+        return this.statusCode;
+    }
+
+    /**
+     * @return header lines in the order the script wrote them, names as written
+     */
+    List<Map.Entry<String, String>> getHeaders() {
+        return this.headers;
+    }
+
+    /**
+     * @return the rest of the script's output
+     */
+    InputStream getBody() {
+        return this.body;
+    }
+}
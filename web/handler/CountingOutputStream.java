@@ -1,14 +1,25 @@
 package web.handler;
 
+import web.server.nio.TemporarySelectors;
+
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 
 public final class CountingOutputStream extends OutputStream {
+    private static final long WRITE_TIMEOUT_MILLIS = 30_000;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
     private OutputStream outputStream;
-    protected int count;
+    private SocketChannel channel;
+    protected long count;
 
-    CountingOutputStream(OutputStream outputStream) {
+    CountingOutputStream(OutputStream outputStream, SocketChannel channel) {
         this.outputStream = outputStream;
+        this.channel = channel;
     }
 
     @Override
@@ -39,7 +50,85 @@ public final class CountingOutputStream extends OutputStream {
         this.count++;
     }
 
-    public int getCount() {
+    /**
+     * Writes the remaining bytes of the buffers in order, as one gathering write on the SocketChannel
+     * when the connection has one so direct buffers are not copied onto the heap first
+     * @param buffers bytes to write, their positions are advanced
+     * @throws IOException if the client disconnects
+     */
+    public void write(ByteBuffer... buffers) throws IOException {
+        if (this.channel == null) {
+            byte[] chunk = null;
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    this.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                    buffer.position(buffer.limit());
+                    continue;
+                }
+                if (chunk == null) {
+                    chunk = new byte[COPY_BUFFER_SIZE];
+                }
+                while (buffer.hasRemaining()) {
+                    int length = Math.min(chunk.length, buffer.remaining());
+                    buffer.get(chunk, 0, length);
+                    this.write(chunk, 0, length);
+                }
+            }
+            return;
+        }
+        this.flush();
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            long written = this.channel.write(buffers);
+            remaining -= written;
+            if (written == 0 && !this.channel.isBlocking()) {
+                TemporarySelectors.await(this.channel, SelectionKey.OP_WRITE, WRITE_TIMEOUT_MILLIS);
+            }
+            this.count += written;
+        }
+    }
+
+    /**
+     * Sends a region of a file to the client. When the connection has a SocketChannel the bytes go
+     * through FileChannel.transferTo (sendfile) without being copied onto the heap.
+     * @param source open file
+     * @param position offset of the first byte to send
+     * @param length number of bytes to send
+     * @throws IOException if the client disconnects or the file is shorter than expected
+     */
+    public void transferFrom(FileChannel source, long position, long length) throws IOException {
+        this.flush();
+        long end = position + length;
+        if (this.channel == null) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(COPY_BUFFER_SIZE, Math.max(length, 1)));
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = source.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("File ended before the announced Content-Length");
+                }
+                this.write(buffer.array(), 0, read);
+                position += read;
+            }
+            return;
+        }
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, this.channel);
+            if (transferred == 0) {
+                if (this.channel.isBlocking() || position >= source.size()) {
+                    throw new IOException("File ended before the announced Content-Length");
+                }
+                TemporarySelectors.await(this.channel, SelectionKey.OP_WRITE, WRITE_TIMEOUT_MILLIS);
+            }
+            position += transferred;
+            this.count += transferred;
+        }
+    }
+
+    public long getCount() {
         return this.count;
     }
 }
@@ -1,62 +1,252 @@
 package web.handler;
 
 import web.authorization.AuthorizationChecker;
+import web.cgi.CgiExecutor;
+import web.cgi.CgiProcess;
+import web.fastcgi.FastCgiConnection;
+import web.fastcgi.FastCgiPool;
+import web.fastcgi.FastCgiPools;
+import web.logging.AccessLogger;
+import web.metrics.MetricsRegistry;
+import web.request.ByteRange;
 import web.request.HttpRequest;
+import web.request.HttpRequestParser;
+import web.request.RequestBodyInputStream;
 import web.request.Header;
+import web.resource.CompressedVariantCache;
 import web.resource.ConfigResource;
+import web.resource.ConfigSnapshot;
+import web.resource.ContentEncoding;
 import web.resource.HttpResource;
+import web.resource.MappedFileCache;
+import web.resource.StaticFileCache;
+import web.resource.ValidatorIndex;
+import web.response.ByteRangesBody;
+import web.response.FileRegion;
 import web.response.HttpResponse;
+import web.server.configuration.MimeTypes;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 public class Handler implements Runnable {
 
-    private static final String DEFAULT_MIME_TYPE = "text/text";
     private static final String HT_ACCESS_FILENAME = ".htaccess";
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5;
+    private static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+    private static final long DEFAULT_MAX_REQUEST_BODY_SIZE = 1024L * 1024 * 1024;
+    // unread request bodies up to this size are discarded to keep the connection, larger ones close it
+    private static final long MAX_DISCARDED_BODY_SIZE = 64 * 1024;
+    private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int CHUNK_SIZE = 16 * 1024;
+    // room for the hexadecimal chunk size and its CRLF in front of the chunk data
+    private static final int CHUNK_SIZE_RESERVE = 10;
 
     private final Socket socket;
-    private final HttpRequest request;
-    private final HttpResponse response;
+    private final Closeable connection;
+    private final InetAddress remoteAddress;
+    private final int keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    private final long maxRequestBodySize;
+    private final String keepAliveHeader;
+    private CountingOutputStream outputStream;
+    private HttpRequest request;
+    private HttpResponse response;
     private AuthorizationChecker authorizationChecker;
-    private int bytesSent;
+    // configuration the current request is served with, a reload does not change it midway
+    private ConfigSnapshot config;
+    private int requestCount;
+    private long bytesSent;
+    // label of the request in the metrics: the ScriptAlias, "static" or "internal"
+    private String route;
+    private boolean keepAlive;
+    private boolean continueSent;
+    private byte[] chunkBuffer;
 
-    public Handler(Socket socket) throws IOException {
+    /**
+     * Creates a handler that reads requests from and writes responses to a blocking socket when run
+     * @param socket accepted client connection
+     */
+    public Handler(Socket socket) {
+        this(socket, socket, socket.getInetAddress());
+    }
+
+    /**
+     * Creates a handler for a connection whose reads are driven by another engine,
+     * requests are passed in one at a time through {@link #serve(HttpRequest)}
+     * @param channel client connection, closed by the handler when the response cannot be delivered
+     * @param outputStream stream writing to the client connection
+     */
+    public Handler(SocketChannel channel, OutputStream outputStream) {
+        this(null, channel, channel.socket().getInetAddress());
+        this.outputStream = new CountingOutputStream(outputStream, channel);
+    }
+
+    private Handler(Socket socket, Closeable connection, InetAddress remoteAddress) {
         this.socket = socket;
-        this.request = new HttpRequest(socket);
-        this.response = new HttpResponse();
+        this.connection = connection;
+        this.remoteAddress = remoteAddress;
+        this.keepAliveTimeout = ConfigResource.getHttpdConf().getKeepAliveTimeout().orElse(DEFAULT_KEEP_ALIVE_TIMEOUT);
+        this.maxKeepAliveRequests = ConfigResource.getHttpdConf().getMaxKeepAliveRequests().orElse(DEFAULT_MAX_KEEP_ALIVE_REQUESTS);
+        this.maxRequestBodySize = ConfigResource.getHttpdConf().getMaxRequestBodySize().orElse(DEFAULT_MAX_REQUEST_BODY_SIZE);
+        this.keepAliveHeader = String.format("timeout=%d, max=%d", this.keepAliveTimeout, this.maxKeepAliveRequests);
+    }
+
+    /**
+     * Answers a connection that could not be handed to a worker with 503 Service Unavailable and closes it.
+     * Runs on the accepting thread so no request parsing is attempted.
+     * @param socket rejected client connection
+     */
+    public static void writeServiceUnavailable(Socket socket) {
+        HttpResponse response = new HttpResponse();
+        response.setStatusCode(503);
+        response.addHeader("Connection", "close");
+        response.addHeader("Retry-After", "1");
+        try (OutputStream outputStream = socket.getOutputStream()) {
+            response.writeResponse(outputStream);
+            outputStream.flush();
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
     }
 
     /**
      * Accepts http requests and generates http responses...
      * <p>
      * Accepted http methods are HEAD, GET, PUT, POST, DELETE
+     * <p>
+     * Requests are answered in order on the same connection until the client asks to close it,
+     * MaxKeepAliveRequests is reached or no new request arrives within KeepAliveTimeout seconds
      * <p/>
      * Overridden run function (from runnable interface) for threading support
      */
     @Override
     public void run() {
+        MetricsRegistry.getInstance().connectionOpened();
         try {
-            this.response.addHeader("Connection", "close");
+            // the parser buffer lives for the whole connection so pipelined bytes already read are not lost between requests
+            HttpRequestParser parser = new HttpRequestParser(this.socket.getInputStream(), this.maxRequestBodySize);
+            this.outputStream = new CountingOutputStream(this.socket.getOutputStream(), this.socket.getChannel());
+            // idle connections are dropped once the keep alive timeout passes without a new request, the first
+            // one included, so a client that connects and sends nothing cannot hold a worker
+            this.socket.setSoTimeout(this.keepAliveTimeout * 1000);
+            do {
+                HttpRequest nextRequest = parser.readRequest();
+                if (nextRequest.isEndOfStream()) {
+                    break;
+                }
+                this.serve(nextRequest);
+            } while (this.keepAlive && !this.socket.isClosed());
+        } catch (IOException ignored) {
+            // client went away, there is nobody left to answer
+        } finally {
+            this.closeSocket();
+            MetricsRegistry.getInstance().connectionClosed();
+        }
+    }
+
+    /**
+     * Generates and writes the response to a single request on this connection
+     * @param request parsed request
+     * @return TRUE if the connection should be kept open for another request
+     */
+    public boolean serve(HttpRequest request) {
+        this.request = request;
+        this.requestCount++;
+        this.response = new HttpResponse();
+        this.authorizationChecker = null;
+        this.keepAlive = request.isKeepAlive() && this.requestCount < this.maxKeepAliveRequests;
+        this.continueSent = false;
+        this.route = "none";
+        long startNanos = System.nanoTime();
+        long countBefore = this.outputStream.getCount();
+        this.handleRequest();
+        MetricsRegistry metrics = MetricsRegistry.getInstance();
+        metrics.recordRequest(request.getMethod(), this.response.getStatusCode(), this.route, System.nanoTime() - startNanos);
+        metrics.addBytesOut(this.outputStream.getCount() - countBefore);
+
+        // whatever the response did not read of the body has to go before the next request can be parsed
+        RequestBodyInputStream body = request.getBody();
+        if (this.keepAlive && body != null) {
+            try {
+                this.keepAlive = body.discardRemaining(MAX_DISCARDED_BODY_SIZE);
+            } catch (IOException e) {
+                this.keepAlive = false;
+            }
+        }
+        return this.keepAlive;
+    }
 
+    /**
+     * @return keep alive timeout in seconds applied to idle connections
+     */
+    public int getKeepAliveTimeout() {
+        return this.keepAliveTimeout;
+    }
+
+    /**
+     * @return largest request body (Content-Length) accepted on this connection
+     */
+    public long getMaxRequestBodySize() {
+        return this.maxRequestBodySize;
+    }
+
+    private void handleRequest() {
+        try {
             if (this.request.isInvalidRequest()) {
-                this.response.setStatusCode(400);
+                this.keepAlive = false;
+                this.response.setStatusCode(this.request.getErrorStatus());
                 this.writeResponse();
                 return;
             }
 
-            HttpResource resource = new HttpResource(this.request);
+            this.config = ConfigResource.getSnapshot();
+            Optional<String> reloadPath = this.config.getHttpdConf().getReloadPath();
+            if (reloadPath.isPresent() && reloadPath.get().equals(this.request.getID())) {
+                this.route = "internal";
+                this.handleReload();
+                return;
+            }
+            Optional<String> metricsPath = this.config.getHttpdConf().getMetricsPath();
+            if (metricsPath.isPresent() && metricsPath.get().equals(this.request.getID())) {
+                this.route = "internal";
+                this.handleMetrics();
+                return;
+            }
+
+            HttpResource resource = new HttpResource(this.request, this.config.getRouteTable());
+            this.route = resource.getIsScriptAliased() ? resource.getScriptAlias() : "static";
+            if (resource.getPath() == null) {
+                // ".." segments leading out of the document root or a ScriptAlias directory
+                this.response.setStatusCode(400);
+                this.writeResponse();
+                return;
+            }
 
             // side note for debugging, http auth is stored per browser, so if viewing auth
             // in browser window (as opposed to postman) you will not get the auth popup
@@ -76,7 +266,10 @@ public class Handler implements Runnable {
                 return;
             }
 
-            if (Files.notExists(resource.getPath()) && !this.request.getMethod().equals("PUT")) {
+            // static GET and HEAD learn that a file is missing from ValidatorIndex, without a stat of their own
+            boolean indexed = !resource.getIsScriptAliased()
+                    && (this.request.getMethod().equalsIgnoreCase("GET") || this.request.getMethod().equalsIgnoreCase("HEAD"));
+            if (!indexed && Files.notExists(resource.getPath()) && !this.request.getMethod().equals("PUT")) {
                 this.response.setStatusCode(404);
                 this.writeResponse();
                 return;
@@ -90,6 +283,7 @@ public class Handler implements Runnable {
         } catch (Exception e) {
             System.out.println("Error while handling request:");
             e.printStackTrace();
+            this.keepAlive = false;
             this.response.setStatusCode(500);
             this.writeResponse();
         }
@@ -100,50 +294,168 @@ public class Handler implements Runnable {
             //difference between get and head
             //head produces get response but WITHOUT body (while still calculating the length of the body)
             case "GET","HEAD" -> {
-                if (request.hasHeader(Header.IF_MODIFIED_SINCE) && resource.compareDateTime(request.getHeaderValue(Header.IF_MODIFIED_SINCE))) {
+                ValidatorIndex.Validators validators = ValidatorIndex.getInstance().get(resource.getPath());
+                if (validators == null) {
+                    this.response.setStatusCode(404);
+                    this.writeResponse();
+                    return;
+                }
+                MimeTypes.ContentType contentType = resource.getContentType(this.config.getMimeTypes());
+                // HEAD is answered from the indexed length and modification time, the contents are never loaded for it
+                boolean head = request.getMethod().equalsIgnoreCase("HEAD");
+                boolean negotiable = contentType.isCompressible();
+                EncodedVariant variant = negotiable ? this.selectEncodedVariant(resource.getPath(), validators, head) : null;
+                if (negotiable) {
+                    this.response.addHeader("Vary", "Accept-Encoding");
+                }
+                // revalidation is answered from the index without touching the file
+                String entityTag = variant != null ? variant.getEntityTag(validators) : validators.getEntityTag();
+                if (this.isNotModified(entityTag, validators.getModifiedMillis())) {
                     this.response.setStatusCode(304);
-                    this.response.addHeader("Last-Modified", resource.getFileDateTimeToString());
+                    this.response.addHeader("ETag", entityTag);
+                    this.response.addHeader("Last-Modified", validators.getLastModified());
                     this.writeResponse();
                     return;
                 }
-                String mimeType = ConfigResource.getMimeTypes().getMimeTypeForExtension(getFileExtension(resource.getPath())).orElse(DEFAULT_MIME_TYPE);
-                this.response.addHeader("Content-Type", mimeType);
-                this.response.setBody(Files.readAllBytes(resource.getPath()));
-                if(request.getMethod().equalsIgnoreCase("HEAD")){
-                    this.response.setSendBody();
+                if (variant != null) {
+                    try {
+                        this.setEncodedBody(resource.getPath(), validators, variant, head);
+                    } catch (NoSuchFileException | FileNotFoundException e) {
+                        this.answerDeleted(variant.sibling != null ? variant.sibling : resource.getPath());
+                        return;
+                    }
+                    this.response.setContentType(contentType);
+                    this.response.addHeader("Content-Encoding", variant.encoding.getToken());
+                    this.response.addHeader("ETag", entityTag);
+                    this.response.addHeader("Last-Modified", validators.getLastModified());
+                    if (head) {
+                        this.response.setSendBody();
+                    }
+                    this.writeResponse();
+                    return;
+                }
+                StaticFileCache.Entry cached;
+                MappedFileCache.Mapping mapping;
+                try {
+                    cached = head ? null : StaticFileCache.getInstance().get(resource.getPath());
+                    // files too large for the cache are sent from a shared mapping when the mmap tier is on
+                    mapping = cached == null && !head ? MappedFileCache.getInstance().acquire(resource.getPath()) : null;
+                } catch (NoSuchFileException | FileNotFoundException e) {
+                    this.answerDeleted(resource.getPath());
+                    return;
+                }
+                try {
+                    ByteBuffer content = cached != null ? cached.getContent() : mapping != null ? mapping.getContent() : null;
+                    long contentModifiedMillis = cached != null ? cached.getModifiedMillis() : mapping != null ? mapping.getModifiedMillis() : 0;
+                    if (content != null && (content.remaining() != validators.getLength() || contentModifiedMillis != validators.getModifiedMillis())) {
+                        // the file changed since it was indexed, the validators must describe the body that is sent
+                        validators = ValidatorIndex.getInstance().revalidate(resource.getPath());
+                        if (validators == null) {
+                            this.response.setStatusCode(404);
+                            this.writeResponse();
+                            return;
+                        }
+                    }
+                    long length = content != null ? content.remaining() : validators.getLength();
+                    this.response.addHeader("Accept-Ranges", "bytes");
+                    this.response.addHeader("ETag", validators.getEntityTag());
+                    this.response.addHeader("Last-Modified", validators.getLastModified());
+
+                    List<ByteRange> ranges = this.getRequestedRanges(length, validators);
+                    if (ranges == null) {
+                        this.response.setContentType(contentType);
+                        if (mapping != null) {
+                            this.response.setBufferBody(content, new FileRegion(resource.getPath(), 0, length));
+                        } else if (content != null) {
+                            this.response.setBufferBody(content);
+                        } else {
+                            // body is streamed from disk by writeResponse, HEAD only needs the size
+                            this.response.setFileBody(new FileRegion(resource.getPath(), 0, length));
+                        }
+                    } else if (ranges.isEmpty()) {
+                        this.response.setStatusCode(416);
+                        this.response.addHeader("Content-Range", String.format("bytes */%d", length));
+                    } else if (ranges.size() == 1) {
+                        ByteRange range = ranges.get(0);
+                        this.response.setStatusCode(206);
+                        this.response.setContentType(contentType);
+                        this.response.addHeader("Content-Range", range.toContentRange(length));
+                        if (mapping != null) {
+                            this.response.setBufferBody(slice(content, range), new FileRegion(resource.getPath(), range.getFirst(), range.getLength()));
+                        } else if (content != null) {
+                            this.response.setBufferBody(slice(content, range));
+                        } else {
+                            this.response.setFileBody(new FileRegion(resource.getPath(), range.getFirst(), range.getLength()));
+                        }
+                    } else {
+                        ByteRangesBody rangesBody = new ByteRangesBody(ranges, contentType.getValue(), length, resource.getPath(), content);
+                        this.response.setStatusCode(206);
+                        this.response.addHeader("Content-Type", rangesBody.getContentType());
+                        this.response.setRangesBody(rangesBody);
+                    }
+                    if (head) {
+                        this.response.setSendBody();
+                    }
+                    this.writeResponse();
+                } finally {
+                    if (mapping != null) {
+                        mapping.release();
+                    }
                 }
-                this.writeResponse();
             }
             
             //creates or replaces file at supplied location
             case "PUT" -> {
-                File file = new File(resource.getPath().toString());
+                Path target = resource.getPath();
+                if (!this.isMatchSatisfied(target)) {
+                    this.response.setStatusCode(412);
+                    this.writeResponse();
+                    return;
+                }
                 // Create directories if needed
-                File parentDirectory = new File(file.getParent());
-                if (!parentDirectory.exists()) {
-                    parentDirectory.mkdirs();
+                Files.createDirectories(target.toAbsolutePath().getParent());
+                this.response.setStatusCode(Files.exists(target) ? 200 : 201);
+                this.sendContinueIfExpected();
+                // the body is streamed to a temporary file next to the target and renamed over it once complete,
+                // so readers never see a partially written file
+                Path temporaryFile = Files.createTempFile(target.toAbsolutePath().getParent(), ".upload-", ".tmp");
+                try {
+                    try (OutputStream fileOutputStream = Files.newOutputStream(temporaryFile)) {
+                        request.getBody().transferTo(fileOutputStream);
+                    }
+                    try {
+                        Files.move(temporaryFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(temporaryFile, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                } finally {
+                    Files.deleteIfExists(temporaryFile);
                 }
-                if (file.createNewFile()) {
-                    this.response.setStatusCode(201);
-                } else {
-                    this.response.setStatusCode(200);
+                ValidatorIndex.Validators validators = ValidatorIndex.getInstance().revalidate(target);
+                if (validators != null) {
+                    this.response.addHeader("ETag", validators.getEntityTag());
                 }
-                Files.write(resource.getPath(), request.getBody());
                 this.response.addHeader("Content-Location", request.getID());
                 this.response.addHeader("Content-Type", "text/html");
                 this.response.setBody(this.responseConcat(request).getBytes());
                 this.writeResponse();
             }
             case "POST" -> {
-                String mimeType = ConfigResource.getMimeTypes().getMimeTypeForExtension(getFileExtension(resource.getPath())).orElse(DEFAULT_MIME_TYPE);
-                this.response.addHeader("Content-Type", mimeType);
-                this.response.setBody(Files.readAllBytes(resource.getPath()));
+                this.response.setContentType(resource.getContentType(this.config.getMimeTypes()));
+                this.response.setFileBody(new FileRegion(resource.getPath(), 0, Files.size(resource.getPath())));
                 this.writeResponse();
             }
             case "DELETE" -> {
+                if (!this.isMatchSatisfied(resource.getPath())) {
+                    this.response.setStatusCode(412);
+                    this.writeResponse();
+                    return;
+                }
                 if(Files.exists(resource.getPath())){
                     File file = new File(resource.getPath().toString());
-                    if(file.delete()){
+                    boolean deleted = file.delete();
+                    ValidatorIndex.getInstance().invalidate(resource.getPath());
+                    if(deleted){
                         System.out.println("Successfully deleted: " + file.getName());
                         this.response.setStatusCode(204);
                     } else{
@@ -151,6 +463,7 @@ public class Handler implements Runnable {
                         this.response.setStatusCode(404);
                     }
                     this.writeResponse();
+                    return;
                 }
                 response.setStatusCode(204);
                 writeResponse();
@@ -162,36 +475,333 @@ public class Handler implements Runnable {
         }
     }
 
+    /**
+     * Answers 404 for a file deleted after ValidatorIndex last looked at it, the stale entry is dropped
+     * @param path resolved path of the missing file
+     */
+    private void answerDeleted(Path path) {
+        ValidatorIndex.getInstance().invalidate(path);
+        this.response.setStatusCode(404);
+        this.writeResponse();
+    }
+
+    /**
+     * Reloads the configuration on a POST to ReloadPath, which is only accepted from the local host
+     */
+    private void handleReload() {
+        if (!this.remoteAddress.isLoopbackAddress()) {
+            this.response.setStatusCode(403);
+        } else if (!this.request.getMethod().equals("POST")) {
+            this.response.setStatusCode(405);
+            this.response.addHeader("Allow", "POST");
+        } else {
+            this.response.setStatusCode(ConfigResource.reload() ? 204 : 500);
+        }
+        this.writeResponse();
+    }
+
+    /**
+     * Answers a GET or HEAD to MetricsPath with the metrics in the Prometheus text format
+     */
+    private void handleMetrics() {
+        String method = this.request.getMethod();
+        if (!method.equals("GET") && !method.equals("HEAD")) {
+            this.response.setStatusCode(405);
+            this.response.addHeader("Allow", "GET, HEAD");
+        } else {
+            this.response.setStatusCode(200);
+            this.response.addHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            this.response.addHeader("Cache-Control", "no-store");
+            this.response.setBody(MetricsRegistry.getInstance().toPrometheusText().getBytes(StandardCharsets.UTF_8));
+            if (method.equals("HEAD")) {
+                this.response.setSendBody();
+            }
+        }
+        this.writeResponse();
+    }
+
     private void handleCgi(HttpResource resource) {
+        Map<String, String> environment = this.getCgiEnvironment(resource);
+        FastCgiPool fastCgiPool = FastCgiPools.getInstance().get(resource.getScriptAlias());
+        if (fastCgiPool != null) {
+            this.handleFastCgi(fastCgiPool, environment);
+            return;
+        }
+
         ProcessBuilder processBuilder = new ProcessBuilder(resource.getPath().toString());
+        processBuilder.environment().putAll(environment);
 
-        Map<String, String> env = processBuilder.environment();
-        env.put("SERVER_PROTOCOL", "HTTP/1.1");
-        this.request.getQueryString().ifPresent((queryString) -> env.put("QUERY_STRING", queryString));
-        Map<Header, String> requestHeaders = this.request.getHeaders();
-        for (Map.Entry<Header, String> requestHeader : requestHeaders.entrySet()) {
-            env.put("HTTP_".concat(requestHeader.getKey().toString()), requestHeader.getValue());
+        CgiProcess process;
+        try {
+            process = CgiExecutor.getInstance().start(resource.getScriptAlias(), processBuilder);
+        } catch (IOException e) {
+            e.printStackTrace();
+            this.response.setStatusCode(500);
+            this.writeResponse();
+            return;
+        }
+        if (process == null) {
+            this.response.setStatusCode(503);
+            this.response.addHeader("Retry-After", "1");
+            this.writeResponse();
+            return;
+        }
+        try (process) {
+            RequestBodyInputStream body = this.request.getBody();
+            if (body != null) {
+                this.sendContinueIfExpected();
+            }
+            process.pumpInput(body);
+            this.writeCgiOutput(process.getOutput());
+        } catch (IOException e) {
+            // nothing has been sent yet, the script failed or was killed before its header block was complete
+            this.response.setStatusCode(process.isTimedOut() ? 504 : 500);
+            this.writeResponse();
         }
+    }
 
-        byte[] body = this.request.getBody();
+    /**
+     * Runs the request on a long-lived FastCGI application instead of spawning a process
+     * @param pool connections to the application serving the ScriptAlias
+     * @param environment CGI environment sent as FastCGI params
+     */
+    private void handleFastCgi(FastCgiPool pool, Map<String, String> environment) {
+        FastCgiConnection connection;
         try {
-            Process process = processBuilder.start();
-
-            OutputStream outputStream = process.getOutputStream();
+            connection = pool.acquire();
+        } catch (IOException e) {
+            System.out.printf("Warning: %s%n", e.getMessage());
+            this.response.setStatusCode(503);
+            this.response.addHeader("Retry-After", "1");
+            this.writeResponse();
+            return;
+        }
+        try {
+            RequestBodyInputStream body = this.request.getBody();
             if (body != null) {
-                outputStream.write(body, 0, body.length);
+                this.sendContinueIfExpected();
             }
-            outputStream.flush();
-            outputStream.close();
-            this.response.setStatusCode(200);
-            this.writeCgiResponse(process);
-            return;
+            this.writeCgiOutput(connection.execute(environment, body));
         } catch (IOException e) {
             e.printStackTrace();
             this.response.setStatusCode(500);
             this.writeResponse();
+        } finally {
+            // the body is no longer sent once the request has ended, the rest of it is discarded by the caller
+            pool.release(connection, connection.endRequest());
+        }
+    }
+
+    /**
+     * @param resource resolved script
+     * @return CGI/1.1 meta-variables of the request, request headers become HTTP_* variables
+     */
+    private Map<String, String> getCgiEnvironment(HttpResource resource) {
+        Map<String, String> environment = new HashMap<>();
+        environment.put("GATEWAY_INTERFACE", "CGI/1.1");
+        environment.put("SERVER_PROTOCOL", "HTTP/1.1");
+        environment.put("SERVER_SOFTWARE", "Chan Rennacker");
+        environment.put("REQUEST_METHOD", this.request.getMethod());
+        environment.put("SCRIPT_NAME", this.request.getID());
+        environment.put("SCRIPT_FILENAME", resource.getPath().toAbsolutePath().toString());
+        environment.put("REMOTE_ADDR", this.remoteAddress.getHostAddress());
+        this.request.getQueryString().ifPresent((queryString) -> environment.put("QUERY_STRING", queryString));
+        if (this.request.getBody() != null) {
+            environment.put("CONTENT_LENGTH", String.valueOf(this.request.getBody().getLength()));
+        }
+        if (this.request.hasHeader(Header.CONTENT_TYPE)) {
+            environment.put("CONTENT_TYPE", this.request.getHeaderValue(Header.CONTENT_TYPE));
+        }
+        Map<Header, String> requestHeaders = this.request.getHeaders();
+        for (Map.Entry<Header, String> requestHeader : requestHeaders.entrySet()) {
+            environment.put("HTTP_".concat(requestHeader.getKey().toString()), requestHeader.getValue());
+        }
+        for (Map.Entry<String, String> extensionHeader : this.request.getExtensionHeaders().entrySet()) {
+            String variable = getCgiVariableName(extensionHeader.getKey());
+            // a "Proxy" field would become HTTP_PROXY, which scripts' HTTP clients take as their proxy (httpoxy)
+            if (!variable.equals("HTTP_PROXY")) {
+                environment.putIfAbsent(variable, extensionHeader.getValue());
+            }
+        }
+        return environment;
+    }
+
+    /**
+     * @param fieldName request field name, e.g. X-Forwarded-For
+     * @return its CGI meta-variable, e.g. HTTP_X_FORWARDED_FOR
+     */
+    private static String getCgiVariableName(String fieldName) {
+        StringBuilder variable = new StringBuilder(5 + fieldName.length()).append("HTTP_");
+        for (int i = 0; i < fieldName.length(); i++) {
+            char c = fieldName.charAt(i);
+            variable.append(c < 128 && Character.isLetterOrDigit(c) ? Character.toUpperCase(c) : '_');
+        }
+        return variable.toString();
+    }
+
+    /**
+     * Evaluates If-None-Match, or If-Modified-Since when there is no If-None-Match, for a GET or HEAD
+     * @param entityTag entity tag of the selected representation
+     * @param modifiedMillis modification time of the requested file
+     * @return TRUE if the client's copy is current and 304 Not Modified can be sent
+     */
+    private boolean isNotModified(String entityTag, long modifiedMillis) {
+        if (this.request.hasHeader(Header.IF_NONE_MATCH)) {
+            return matchesEntityTag(this.request.getHeaderValue(Header.IF_NONE_MATCH), entityTag, false);
+        }
+        return this.request.hasHeader(Header.IF_MODIFIED_SINCE)
+                && !HttpResource.isModifiedSince(this.request.getHeaderValue(Header.IF_MODIFIED_SINCE), modifiedMillis);
+    }
+
+    /**
+     * A content coding chosen for a response, served from a pre-compressed sibling file when there is one
+     */
+    private static final class EncodedVariant {
+        private final ContentEncoding encoding;
+        // null when the file is compressed by the server
+        private final Path sibling;
+        private final ValidatorIndex.Validators siblingValidators;
+        // compressed bytes already taken from CompressedVariantCache, null if they are yet to be looked up
+        private final ByteBuffer compressed;
+
+        private EncodedVariant(ContentEncoding encoding, Path sibling, ValidatorIndex.Validators siblingValidators, ByteBuffer compressed) {
+            this.encoding = encoding;
+            this.sibling = sibling;
+            this.siblingValidators = siblingValidators;
+            this.compressed = compressed;
+        }
+
+        private String getEntityTag(ValidatorIndex.Validators validators) {
+            String entityTag = this.sibling != null ? this.siblingValidators.getEntityTag() : validators.getEntityTag();
+            return entityTag.substring(0, entityTag.length() - 1) + "-" + this.encoding.getToken() + "\"";
+        }
+    }
+
+    /**
+     * Negotiates Accept-Encoding for a file of a compressible type. Range requests always get the identity
+     * coding so ranges refer to the bytes of the file. HEAD never compresses, it only gets a server compressed
+     * coding that is already cached and the identity coding otherwise.
+     * @param path resolved path of the file
+     * @param validators validators of the file
+     * @param head TRUE for a HEAD request
+     * @return the coding to send, null for the file as it is
+     * @throws IOException if a sibling's attributes cannot be read
+     */
+    private EncodedVariant selectEncodedVariant(Path path, ValidatorIndex.Validators validators, boolean head) throws IOException {
+        if (!this.request.hasHeader(Header.ACCEPT_ENCODING) || this.request.hasHeader(Header.RANGE)) {
+            return null;
+        }
+        for (ContentEncoding encoding : ContentEncoding.acceptable(this.request.getHeaderValue(Header.ACCEPT_ENCODING))) {
+            if (encoding.getSiblingSuffix() != null) {
+                Path sibling = Paths.get(path + encoding.getSiblingSuffix());
+                ValidatorIndex.Validators siblingValidators = ValidatorIndex.getInstance().get(sibling);
+                // a sibling older than the file is stale and ignored
+                if (siblingValidators != null && siblingValidators.getModifiedMillis() >= validators.getModifiedMillis()) {
+                    return new EncodedVariant(encoding, sibling, siblingValidators, null);
+                }
+            }
+            if (encoding.isCompressible() && CompressedVariantCache.getInstance().isCompressible(validators.getLength())) {
+                if (!head) {
+                    return new EncodedVariant(encoding, null, null, null);
+                }
+                ByteBuffer compressed = CompressedVariantCache.getInstance().getIfCached(path, validators, encoding);
+                if (compressed != null) {
+                    return new EncodedVariant(encoding, null, null, compressed);
+                }
+            }
+        }
+        return null;
+    }
+
+    private void setEncodedBody(Path path, ValidatorIndex.Validators validators, EncodedVariant variant, boolean head) throws IOException {
+        if (variant.compressed != null) {
+            this.response.setBufferBody(variant.compressed);
+            return;
+        }
+        if (variant.sibling == null) {
+            this.response.setBufferBody(CompressedVariantCache.getInstance().get(path, validators, variant.encoding));
             return;
         }
+        StaticFileCache.Entry cached = head ? null : StaticFileCache.getInstance().get(variant.sibling);
+        if (cached != null) {
+            this.response.setBufferBody(cached.getContent());
+        } else {
+            this.response.setFileBody(new FileRegion(variant.sibling, 0, variant.siblingValidators.getLength()));
+        }
+    }
+
+    /**
+     * Evaluates If-Match for a PUT or DELETE against the current state of the file, not the indexed one
+     * @param path resolved path of the file
+     * @return TRUE if the request may change the file
+     * @throws IOException if the file attributes cannot be read
+     */
+    private boolean isMatchSatisfied(Path path) throws IOException {
+        if (!this.request.hasHeader(Header.IF_MATCH)) {
+            return true;
+        }
+        ValidatorIndex.Validators validators = ValidatorIndex.getInstance().revalidate(path);
+        return validators != null && matchesEntityTag(this.request.getHeaderValue(Header.IF_MATCH), validators.getEntityTag(), true);
+    }
+
+    /**
+     * @param headerValue If-Match or If-None-Match value, a list of entity tags or *
+     * @param entityTag current entity tag of the file
+     * @param strong TRUE to use the strong comparison, weak tags never match then
+     * @return TRUE if one of the listed tags matches
+     */
+    private static boolean matchesEntityTag(String headerValue, String entityTag, boolean strong) {
+        for (String candidate : headerValue.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                if (strong) {
+                    continue;
+                }
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(entityTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates Range and If-Range for a GET of a static file
+     * @param length length of the file
+     * @param validators validators of the file, If-Range matches the ETag strongly or Last-Modified exactly
+     * @return the ranges to send, empty if none is satisfiable, null if the whole file is sent
+     */
+    private List<ByteRange> getRequestedRanges(long length, ValidatorIndex.Validators validators) {
+        if (!this.request.getMethod().equalsIgnoreCase("GET") || !this.request.hasHeader(Header.RANGE)) {
+            return null;
+        }
+        if (this.request.hasHeader(Header.IF_RANGE)) {
+            String ifRange = this.request.getHeaderValue(Header.IF_RANGE);
+            boolean current = ifRange.startsWith("\"") ? ifRange.equals(validators.getEntityTag()) : ifRange.equals(validators.getLastModified());
+            if (!current) {
+                // the client's copy is outdated, it gets the whole file instead of ranges it cannot combine
+                return null;
+            }
+        }
+        return ByteRange.parse(this.request.getHeaderValue(Header.RANGE), length);
+    }
+
+    private static ByteBuffer slice(ByteBuffer content, ByteRange range) {
+        content.limit((int) (range.getLast() + 1));
+        content.position((int) range.getFirst());
+        return content;
+    }
+
+    private void sendContinueIfExpected() throws IOException {
+        if (this.request.expectsContinue() && !this.continueSent) {
+            this.continueSent = true;
+            this.outputStream.write(CONTINUE_RESPONSE);
+            this.outputStream.flush();
+        }
     }
 
     private String responseConcat(HttpRequest request) {
@@ -201,85 +811,168 @@ public class Handler implements Runnable {
     }
 
     private void writeResponse() {
-        try (CountingOutputStream outputStream = new CountingOutputStream(this.socket.getOutputStream())) {
-            this.response.writeResponse(outputStream);
-            outputStream.flush();
-            this.bytesSent = outputStream.getCount();
+        RequestBodyInputStream body = this.request.getBody();
+        if (body != null && body.getRemaining() > 0
+                && (body.getRemaining() > MAX_DISCARDED_BODY_SIZE || (this.request.expectsContinue() && !this.continueSent))) {
+            // the unread body is too large to discard, or the client is still waiting to be asked for it
+            this.keepAlive = false;
+        }
+        if (this.response.getStreamedBody() != null && !this.response.isChunked() && this.response.isSendBody()) {
+            // the end of an unframed body is signalled by closing the connection
+            this.keepAlive = false;
+        }
+        if (this.keepAlive) {
+            this.response.addHeader("Connection", "keep-alive");
+            this.response.addHeader("Keep-Alive", this.keepAliveHeader);
+        } else {
+            this.response.addHeader("Connection", "close");
+        }
+        long countBefore = this.outputStream.getCount();
+        try {
+            // head and small bodies are encoded together, a large buffer body is gathered into the same write
+            ByteBuffer head = this.response.encodeHead();
+            ByteBuffer bufferBody = this.response.getBufferBody();
+            FileRegion bufferBodySource = this.response.getBufferBodySource();
+            if (bufferBody != null && this.response.isSendBody() && bufferBodySource != null) {
+                this.writeMapped(head, bufferBody, bufferBodySource.getPath(), bufferBodySource.getPosition());
+            } else if (bufferBody != null && this.response.isSendBody() && !this.response.isBufferBodyEncoded()) {
+                this.outputStream.write(head, bufferBody);
+            } else {
+                this.outputStream.write(head);
+            }
+            FileRegion fileBody = this.response.getFileBody();
+            if (fileBody != null && this.response.isSendBody()) {
+                try (FileChannel fileChannel = FileChannel.open(fileBody.getPath(), StandardOpenOption.READ)) {
+                    this.outputStream.transferFrom(fileChannel, fileBody.getPosition(), fileBody.getCount());
+                }
+            }
+            if (this.response.getRangesBody() != null && this.response.isSendBody()) {
+                this.writeRanges(this.response.getRangesBody());
+            }
+            if (this.response.getStreamedBody() != null && this.response.isSendBody()) {
+                this.writeStreamed(this.response.getStreamedBody(), this.response.isChunked());
+            }
+            this.outputStream.flush();
+            this.bytesSent = this.outputStream.getCount() - countBefore;
             this.logRequest();
         } catch (IOException e) {
             // Handle the case where client closed the connection while server was writing to it
-            try {
-                this.socket.close();
-            } catch (IOException ex) {
-                System.out.println("Error occurred when closing socket");
-                ex.printStackTrace();
+            this.keepAlive = false;
+            this.closeSocket();
+        }
+    }
+
+    private void writeRanges(ByteRangesBody rangesBody) throws IOException {
+        ByteBuffer content = rangesBody.getContent();
+        try (FileChannel fileChannel = content == null ? FileChannel.open(rangesBody.getPath(), StandardOpenOption.READ) : null) {
+            List<ByteRange> ranges = rangesBody.getRanges();
+            for (int i = 0; i < ranges.size(); i++) {
+                ByteRange range = ranges.get(i);
+                ByteBuffer partHead = ByteBuffer.wrap(rangesBody.getPartHead(i));
+                if (fileChannel == null) {
+                    this.writeMapped(partHead, slice(content.duplicate(), range), rangesBody.getPath(), range.getFirst());
+                } else {
+                    this.outputStream.write(partHead);
+                    this.outputStream.transferFrom(fileChannel, range.getFirst(), range.getLength());
+                }
             }
+            this.outputStream.write(ByteBuffer.wrap(rangesBody.getClosingDelimiter()));
         }
     }
 
-    private void writeCgiResponse(Process process) throws IOException {
-        try (CountingOutputStream outputStream = new CountingOutputStream(this.socket.getOutputStream())) {
-            this.response.writeMinimalCgiResponse(outputStream);
-            process.getInputStream().transferTo(outputStream);
-            outputStream.flush();
-            this.bytesSent = outputStream.getCount();
-            logRequest();
-        } catch (SocketException e) {
-            // Handle the case where client closed the connection while server was writing to it
-            try {
-                this.socket.close();
-            } catch (IOException ex) {
-                System.out.println("Error occurred when closing socket");
-                ex.printStackTrace();
+    /**
+     * Writes a head followed by file contents held in memory, usually a shared mapping of the file.
+     * A file truncated while mapped makes reading the mapping fault with an InternalError, the rest of
+     * the contents is then transferred from the file, which fails with an IOException if it is gone.
+     * @param head bytes to send first
+     * @param content contents of the file starting at filePosition, its position is advanced
+     * @param path file the contents were read from
+     * @param filePosition offset of the first remaining byte of content in the file
+     * @throws IOException if the client disconnects or the file no longer has the bytes
+     */
+    private void writeMapped(ByteBuffer head, ByteBuffer content, Path path, long filePosition) throws IOException {
+        int first = content.position();
+        try {
+            this.outputStream.write(head, content);
+        } catch (InternalError e) {
+            this.outputStream.write(head);
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.outputStream.transferFrom(fileChannel, filePosition + content.position() - first, content.remaining());
             }
         }
     }
 
-    private String getFileExtension(Path path) {
-        String filename = path.toString();
-        return Optional.of(filename).filter(f -> f.contains(".")).map(f -> f.substring(filename.lastIndexOf(".") + 1)).orElse("");
+    /**
+     * Answers with the output of a CGI script or FastCGI application, header block first
+     * @param output the script's standard output
+     * @throws IOException if the header block cannot be read, nothing has been sent then
+     */
+    private void writeCgiOutput(InputStream output) throws IOException {
+        CgiResponseHead head = CgiResponseHead.read(output);
+        this.response.setStatusCode(head.getStatusCode());
+        for (Map.Entry<String, String> header : head.getHeaders()) {
+            this.response.appendHeader(header.getKey(), header.getValue());
+        }
+        // HTTP/1.0 clients cannot decode chunks, their response ends when the connection is closed
+        this.response.setStreamedBody(head.getBody(), this.request.acceptsChunked());
+        if (this.request.getMethod().equalsIgnoreCase("HEAD")) {
+            this.response.setSendBody();
+        }
+        this.writeResponse();
     }
 
-    private void logRequest() throws IOException {
-        String host = this.socket.getInetAddress().getHostAddress();
-        String ident = "-";
-        String authuser = this.authorizationChecker != null ? this.authorizationChecker.getCheckedUser().orElse("-") : "-";
-        String date = new SimpleDateFormat("d/MMM/yyyy:hh:mm:ss Z").format(new Date());
-        String request = this.request.getRequestLine();
-        String status = String.valueOf(this.response.getStatusCode());
-        String bytes = String.valueOf(this.bytesSent);
-        String logString = String.format(
-                "%s %s %s [%s] \"%s\" %s %s\n",
-                host,
-                ident,
-                authuser,
-                date,
-                request,
-                status,
-                bytes
-        );
-
-        // Log to stdout
-        System.out.print(logString);
-
-        // Log to file
-        File file = new File(ConfigResource.getHttpdConf().getLogFile().orElse("log.txt"));
-        if (file.isDirectory()) {
-            System.out.printf("Error: Cannot log to file, configured log file %s is a directory!\n", file.getAbsolutePath());
-            return;
+    /**
+     * Copies a body of unknown length to the client, as chunks sized by what the source has available
+     * so the first bytes go out before the source is finished
+     * @param body source of the body
+     * @param chunked TRUE to frame each read as a chunk and end with the last chunk
+     * @throws IOException if the source or the client fails
+     */
+    private void writeStreamed(InputStream body, boolean chunked) throws IOException {
+        if (this.chunkBuffer == null) {
+            this.chunkBuffer = new byte[CHUNK_SIZE_RESERVE + CHUNK_SIZE + 2];
+        }
+        byte[] buffer = this.chunkBuffer;
+        int read;
+        while ((read = body.read(buffer, CHUNK_SIZE_RESERVE, CHUNK_SIZE)) != -1) {
+            if (read == 0) {
+                continue;
+            }
+            if (!chunked) {
+                this.outputStream.write(buffer, CHUNK_SIZE_RESERVE, read);
+                this.outputStream.flush();
+                continue;
+            }
+            // chunk size line goes right in front of the data and CRLF behind it, so each chunk is a single write
+            int start = CHUNK_SIZE_RESERVE - 2;
+            buffer[start] = '\r';
+            buffer[start + 1] = '\n';
+            for (int size = read; size > 0; size >>>= 4) {
+                buffer[--start] = (byte) Character.forDigit(size & 0xf, 16);
+            }
+            buffer[CHUNK_SIZE_RESERVE + read] = '\r';
+            buffer[CHUNK_SIZE_RESERVE + read + 1] = '\n';
+            this.outputStream.write(buffer, start, CHUNK_SIZE_RESERVE + read + 2 - start);
+            this.outputStream.flush();
         }
-        // Create directories if needed
-        File parentDirectory = new File(file.getParent());
-        if (!parentDirectory.exists()) {
-            parentDirectory.mkdirs();
+        if (chunked) {
+            this.outputStream.write(LAST_CHUNK);
         }
-        // Append log string, creating logfile if needed
-        Files.writeString(
-                Paths.get(file.toURI()),
-                logString,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.APPEND
-        );
     }
-}
 
+    private void closeSocket() {
+        try {
+            this.connection.close();
+        } catch (IOException ex) {
+            System.out.println("Error occurred when closing socket");
+            ex.printStackTrace();
+        }
+    }
+
+    private void logRequest() {
+        String host = this.remoteAddress.getHostAddress();
+        String authuser = this.authorizationChecker != null ? this.authorizationChecker.getCheckedUser().orElse("-") : "-";
+        // formatting and file I/O happen on the access log writer thread
+        AccessLogger.getInstance().log(host, authuser, this.request.getRequestLine(), this.response.getStatusCode(), this.bytesSent);
+    }
+}
@@ -0,0 +1,210 @@
+package web.logging;
+
+import web.resource.ConfigResource;
+import web.server.configuration.HttpdConf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous access log in common log format.
+ * <p>
+ * Request threads only capture the fields of a record and put it in a lock-free ring buffer.
+ * A single writer thread formats records in batches (the timestamp is formatted once per second)
+ * and appends them to stdout and to LogFile through one FileChannel that stays open.
+ * When the buffer (AccessLogBufferSize records) is full, AccessLogOverflow decides whether records
+ * are dropped (counted) or the request thread waits for space.
+ */
+public final class AccessLogger {
+
+    public enum OverflowPolicy {
+        DROP,
+        BLOCK
+    }
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final String DEFAULT_LOG_FILE = "log.txt";
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = 10_000_000;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("d/MMM/yyyy:hh:mm:ss Z", Locale.ENGLISH).withZone(ZoneId.systemDefault());
+
+    private static final AccessLogger INSTANCE = new AccessLogger(ConfigResource.getHttpdConf());
+
+    private static final class Record {
+        private final String host;
+        private final String authUser;
+        private final String requestLine;
+        private final int status;
+        private final long bytes;
+        private final long epochSecond;
+
+        private Record(String host, String authUser, String requestLine, int status, long bytes, long epochSecond) {
+            this.host = host;
+            this.authUser = authUser;
+            this.requestLine = requestLine;
+            this.status = status;
+            this.bytes = bytes;
+            this.epochSecond = epochSecond;
+        }
+    }
+
+    private final MpscRingBuffer<Record> buffer;
+    private final OverflowPolicy overflowPolicy;
+    private final FileChannel logChannel;
+    private final Thread writer;
+    private final LongAdder droppedCount = new LongAdder();
+    private volatile boolean writerParked;
+    // only used by the writer thread
+    private long cachedEpochSecond = Long.MIN_VALUE;
+    private String cachedDate;
+
+    private AccessLogger(HttpdConf httpdConf) {
+        this.buffer = new MpscRingBuffer<>(httpdConf.getAccessLogBufferSize().orElse(DEFAULT_BUFFER_SIZE));
+        OverflowPolicy policy = OverflowPolicy.DROP;
+        String overflow = httpdConf.getAccessLogOverflow().orElse("drop");
+        try {
+            policy = OverflowPolicy.valueOf(overflow.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Warning: AccessLogger: Unrecognized overflow policy %s, dropping records%n", overflow);
+        }
+        this.overflowPolicy = policy;
+        this.logChannel = openLogFile(new File(httpdConf.getLogFile().orElse(DEFAULT_LOG_FILE)));
+
+        this.writer = new Thread(this::writeLoop, "access-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "access-log-flush"));
+    }
+
+    public static AccessLogger getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Queues one access log line, never does I/O on the calling thread
+     * @param host client address
+     * @param authUser authenticated user or "-"
+     * @param requestLine request line as received
+     * @param status response status code
+     * @param bytes number of bytes sent
+     */
+    public void log(String host, String authUser, String requestLine, int status, long bytes) {
+        Record record = new Record(host, authUser, requestLine, status, bytes, System.currentTimeMillis() / 1000);
+        while (!this.buffer.offer(record)) {
+            if (this.overflowPolicy == OverflowPolicy.DROP) {
+                this.droppedCount.increment();
+                return;
+            }
+            LockSupport.unpark(this.writer);
+            Thread.onSpinWait();
+        }
+        if (this.writerParked) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    /**
+     * @return number of records lost because the buffer was full
+     */
+    public long getDroppedCount() {
+        return this.droppedCount.sum();
+    }
+
+    /**
+     * @return number of records waiting to be written
+     */
+    public int getQueueDepth() {
+        return this.buffer.size();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            if (!this.writeBatch()) {
+                this.writerParked = true;
+                // re-check after announcing the park so a record offered in between is not left waiting
+                if (this.buffer.size() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                this.writerParked = false;
+            }
+        }
+    }
+
+    private synchronized void drain() {
+        while (this.writeBatch()) {
+            // keep writing until the buffer is empty
+        }
+    }
+
+    // writes up to MAX_BATCH_SIZE records with one write per destination, returns FALSE if there was nothing to write
+    private synchronized boolean writeBatch() {
+        StringBuilder batch = new StringBuilder();
+        Record record;
+        int count = 0;
+        while (count < MAX_BATCH_SIZE && (record = this.buffer.poll()) != null) {
+            batch.append(record.host).append(" - ").append(record.authUser)
+                    .append(" [").append(this.formatDate(record.epochSecond)).append("] \"")
+                    .append(record.requestLine).append("\" ")
+                    .append(record.status).append(' ')
+                    .append(record.bytes).append('\n');
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        System.out.write(bytes, 0, bytes.length);
+        System.out.flush();
+        if (this.logChannel != null) {
+            try {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+                while (byteBuffer.hasRemaining()) {
+                    this.logChannel.write(byteBuffer);
+                }
+            } catch (IOException e) {
+                System.out.println("Error: Failed to write access log");
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    private String formatDate(long epochSecond) {
+        if (epochSecond != this.cachedEpochSecond) {
+            this.cachedEpochSecond = epochSecond;
+            this.cachedDate = DATE_FORMATTER.format(Instant.ofEpochSecond(epochSecond));
+        }
+        return this.cachedDate;
+    }
+
+    private static FileChannel openLogFile(File file) {
+        if (file.isDirectory()) {
+            System.out.printf("Error: Cannot log to file, configured log file %s is a directory!\n", file.getAbsolutePath());
+            return null;
+        }
+        // Create directories if needed
+        File parentDirectory = file.getAbsoluteFile().getParentFile();
+        if (parentDirectory != null && !parentDirectory.exists()) {
+            parentDirectory.mkdirs();
+        }
+        try {
+            // Append log lines, creating logfile if needed
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.printf("Error: Cannot open log file %s%n", file.getAbsolutePath());
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package web.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ * <p>
+ * Every slot carries a sequence number telling producers whether it is free for the current lap
+ * and the consumer whether it has been published, so producers only contend on one CAS of the tail.
+ * @param <T> element type
+ */
+class MpscRingBuffer<T> {
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only written by the consumer thread, volatile so size() can be read from anywhere
+    private volatile long head;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            this.sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element, may be called from any thread
+     * @return FALSE if the buffer is full
+     */
+    boolean offer(T element) {
+        long position = this.tail.get();
+        while (true) {
+            int index = (int) (position & this.mask);
+            long difference = this.sequences.get(index) - position;
+            if (difference == 0) {
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.slots[index] = element;
+                    this.sequences.set(index, position + 1);
+                    return true;
+                }
+                position = this.tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = this.tail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest published element, must only be called from the consumer thread
+     * @return the element or null if none is available
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        int index = (int) (this.head & this.mask);
+        if (this.sequences.get(index) != this.head + 1) {
+            return null;
+        }
+        T element = (T) this.slots[index];
+        this.slots[index] = null;
+        this.sequences.set(index, this.head + this.slots.length);
+        this.head++;
+        return element;
+    }
+
+    /**
+     * @return approximate number of queued elements
+     */
+    int size() {
+        return (int) Math.max(0, this.tail.get() - this.head);
+    }
+}
@@ -0,0 +1,101 @@
+package web.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of durations, recorded in microseconds.
+ * <p>
+ * Like an HDR histogram every power of two is split into SUB_BUCKETS linear buckets, so any value is
+ * off by at most 1/SUB_BUCKETS (12.5%) whatever its magnitude, with a fixed number of counters
+ * covering 1 microsecond up to several hours. Recording is a single atomic increment.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values at or above 2^MAX_EXPONENT microseconds (about 9.5 hours) go into the last bucket
+    private static final int MAX_EXPONENT = 35;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * @param nanos a duration in nanoseconds
+     */
+    public void record(long nanos) {
+        this.counts.incrementAndGet(bucketIndex(Math.max(0, nanos) / 1000));
+        this.count.increment();
+        this.sumNanos.add(nanos);
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return smallest value in microseconds that falls into the bucket
+     */
+    private static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    public long getSumNanos() {
+        return this.sumNanos.sum();
+    }
+
+    /**
+     * @param upperBoundMicros a power of two
+     * @return number of recorded values below the bound
+     */
+    public long getCountBelow(long upperBoundMicros) {
+        long below = 0;
+        for (int i = 0; i < BUCKETS && bucketLowerBound(i) < upperBoundMicros; i++) {
+            below += this.counts.get(i);
+        }
+        return below;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper end in microseconds of the bucket holding the value at the percentile, 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return i + 1 < BUCKETS ? bucketLowerBound(i + 1) - 1 : bucketLowerBound(i);
+            }
+        }
+        return bucketLowerBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,210 @@
+package web.metrics;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * In-process metrics of the server, exposed in the Prometheus text format.
+ * <p>
+ * Requests are counted in a latency histogram per method, status class and route (the ScriptAlias or
+ * "static"). Traffic and connection counts are LongAdders, so recording never contends. Components
+ * with counters of their own (caches, pools, the access log) register suppliers which are only read
+ * when the metrics are scraped.
+ */
+public final class MetricsRegistry {
+
+    private static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "DELETE");
+    // histogram buckets exported, powers of two from 64 microseconds to about 34 seconds
+    private static final int FIRST_EXPORTED_EXPONENT = 6;
+    private static final int LAST_EXPORTED_EXPONENT = 25;
+    private static final String[] BUCKET_LABELS = bucketLabels();
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    private static final class RequestKey {
+        private final String method;
+        private final String statusClass;
+        private final String route;
+
+        private RequestKey(String method, String statusClass, String route) {
+            this.method = method;
+            this.statusClass = statusClass;
+            this.route = route;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof RequestKey key && this.method.equals(key.method)
+                    && this.statusClass.equals(key.statusClass) && this.route.equals(key.route);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.method, this.statusClass, this.route);
+        }
+    }
+
+    private static final class Metric {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String label;
+        private final Supplier<Map<?, ? extends Number>> values;
+
+        private Metric(String name, String help, String type, String label, Supplier<Map<?, ? extends Number>> values) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+            this.values = values;
+        }
+    }
+
+    private final Map<RequestKey, LatencyHistogram> requests = new ConcurrentHashMap<>();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder openedConnections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    private MetricsRegistry() {}
+
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param method request method, unknown methods are counted as "OTHER"
+     * @param status response status code
+     * @param route ScriptAlias the request was routed through, "static" for files below the document root
+     * @param nanos time from the parsed request to the written response
+     */
+    public void recordRequest(String method, int status, String route, long nanos) {
+        RequestKey key = new RequestKey(METHODS.contains(method) ? method : "OTHER", status / 100 + "xx", route);
+        LatencyHistogram histogram = this.requests.get(key);
+        if (histogram == null) {
+            histogram = this.requests.computeIfAbsent(key, k -> new LatencyHistogram());
+        }
+        histogram.record(nanos);
+    }
+
+    public void addBytesIn(long bytes) {
+        this.bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        this.bytesOut.add(bytes);
+    }
+
+    public void connectionOpened() {
+        this.openedConnections.increment();
+        this.activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+    /**
+     * Exposes a value kept by another component
+     * @param name metric name
+     * @param help description
+     * @param type "counter" or "gauge"
+     * @param value read on every scrape
+     */
+    public void register(String name, String help, String type, Supplier<? extends Number> value) {
+        this.metrics.add(new Metric(name, help, type, null, () -> Map.of("", value.get())));
+    }
+
+    /**
+     * Exposes values kept by another component under one label
+     * @param name metric name
+     * @param help description
+     * @param type "counter" or "gauge"
+     * @param label name of the label the keys of the map become values of
+     * @param values read on every scrape
+     */
+    public void register(String name, String help, String type, String label, Supplier<Map<?, ? extends Number>> values) {
+        this.metrics.add(new Metric(name, help, type, label, values));
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format (version 0.0.4)
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder(8 * 1024);
+        header(text, "httpd_request_duration_seconds", "Time from parsed request to written response", "histogram");
+        // sorted so series keep their order between scrapes
+        Map<String, LatencyHistogram> series = new TreeMap<>();
+        for (Map.Entry<RequestKey, LatencyHistogram> request : this.requests.entrySet()) {
+            RequestKey key = request.getKey();
+            series.put(String.format("method=\"%s\",status=\"%s\",route=\"%s\"", key.method, key.statusClass, escape(key.route)), request.getValue());
+        }
+        for (Map.Entry<String, LatencyHistogram> request : series.entrySet()) {
+            String labels = request.getKey();
+            LatencyHistogram histogram = request.getValue();
+            for (int exponent = FIRST_EXPORTED_EXPONENT; exponent <= LAST_EXPORTED_EXPONENT; exponent++) {
+                text.append("httpd_request_duration_seconds_bucket{").append(labels).append(",le=\"")
+                        .append(BUCKET_LABELS[exponent - FIRST_EXPORTED_EXPONENT]).append("\"} ")
+                        .append(histogram.getCountBelow(1L << exponent)).append('\n');
+            }
+            long count = histogram.getCount();
+            text.append("httpd_request_duration_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+            text.append("httpd_request_duration_seconds_sum{").append(labels).append("} ").append(histogram.getSumNanos() / 1e9).append('\n');
+            text.append("httpd_request_duration_seconds_count{").append(labels).append("} ").append(count).append('\n');
+        }
+
+        sample(header(text, "httpd_received_bytes_total", "Bytes received from clients", "counter"), "httpd_received_bytes_total", null, null, this.bytesIn.sum());
+        sample(header(text, "httpd_sent_bytes_total", "Bytes sent to clients", "counter"), "httpd_sent_bytes_total", null, null, this.bytesOut.sum());
+        sample(header(text, "httpd_connections_total", "Client connections accepted", "counter"), "httpd_connections_total", null, null, this.openedConnections.sum());
+        sample(header(text, "httpd_active_connections", "Client connections currently open", "gauge"), "httpd_active_connections", null, null, this.activeConnections.sum());
+
+        for (Metric metric : this.metrics) {
+            header(text, metric.name, metric.help, metric.type);
+            for (Map.Entry<String, Number> value : sortedByKey(metric.values.get()).entrySet()) {
+                sample(text, metric.name, metric.label, value.getKey(), value.getValue());
+            }
+        }
+        return text.toString();
+    }
+
+    private static String[] bucketLabels() {
+        String[] labels = new String[LAST_EXPORTED_EXPONENT - FIRST_EXPORTED_EXPONENT + 1];
+        for (int exponent = FIRST_EXPORTED_EXPONENT; exponent <= LAST_EXPORTED_EXPONENT; exponent++) {
+            // bounds are in seconds, plain notation reads better than 6.4E-5
+            labels[exponent - FIRST_EXPORTED_EXPONENT] = BigDecimal.valueOf(1L << exponent, 6).stripTrailingZeros().toPlainString();
+        }
+        return labels;
+    }
+
+    private static Map<String, Number> sortedByKey(Map<?, ? extends Number> values) {
+        Map<String, Number> converted = new TreeMap<>();
+        values.forEach((key, value) -> converted.put(String.valueOf(key), value));
+        return converted;
+    }
+
+    private static StringBuilder header(StringBuilder text, String name, String help, String type) {
+        return text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String label, Object labelValue, Number value) {
+        text.append(name);
+        if (label != null) {
+            text.append('{').append(label).append("=\"").append(escape(String.valueOf(labelValue))).append("\"}");
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
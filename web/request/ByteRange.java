@@ -0,0 +1,101 @@
+package web.request;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An inclusive range of byte positions requested with the Range header
+ */
+public class ByteRange {
+    // more ranges than this are answered with the whole representation instead
+    private static final int MAX_RANGES = 16;
+
+    private final long first;
+    private final long last;
+
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    /**
+     * Parses a Range header value such as <code>bytes=0-499, -500</code> against a representation of the given length.
+     * Ranges are sorted and overlapping or adjacent ones are coalesced.
+     * @param value Range header value
+     * @param completeLength length of the representation
+     * @return the satisfiable ranges, empty if none is satisfiable (416), null if the header has to be ignored (200)
+     */
+    public static List<ByteRange> parse(String value, long completeLength) {
+        int equals = value.indexOf('=');
+        if (equals == -1 || !value.substring(0, equals).trim().equalsIgnoreCase("bytes")) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : value.substring(equals + 1).split(",")) {
+            spec = spec.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                if (dash == 0) {
+                    // suffix range, the last n bytes
+                    long suffixLength = Long.parseLong(spec.substring(1));
+                    if (suffixLength > 0 && completeLength > 0) {
+                        ranges.add(new ByteRange(Math.max(0, completeLength - suffixLength), completeLength - 1));
+                    }
+                    continue;
+                }
+                long first = Long.parseLong(spec.substring(0, dash));
+                long last = dash == spec.length() - 1 ? completeLength - 1 : Long.parseLong(spec.substring(dash + 1));
+                if (first < 0 || (last < first && dash != spec.length() - 1)) {
+                    return null;
+                }
+                if (first < completeLength) {
+                    ranges.add(new ByteRange(first, Math.min(last, completeLength - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        ranges.sort(Comparator.comparingLong(ByteRange::getFirst));
+        List<ByteRange> coalesced = new ArrayList<>();
+        for (ByteRange range : ranges) {
+            ByteRange previous = coalesced.isEmpty() ? null : coalesced.get(coalesced.size() - 1);
+            if (previous != null && range.first <= previous.last + 1) {
+                coalesced.set(coalesced.size() - 1, new ByteRange(previous.first, Math.max(previous.last, range.last)));
+            } else {
+                coalesced.add(range);
+            }
+        }
+        return coalesced.size() > MAX_RANGES ? null : coalesced;
+    }
+
+    public long getFirst() {
+        return this.first;
+    }
+
+    public long getLast() {
+        return this.last;
+    }
+
+    public long getLength() {
+        return this.last - this.first + 1;
+    }
+
+    /**
+     * @param completeLength length of the representation
+     * @return Content-Range value, e.g. <code>bytes 0-499/1234</code>
+     */
+    public String toContentRange(long completeLength) {
+        return String.format("bytes %d-%d/%d", this.first, this.last, completeLength);
+    }
+}
@@ -1,49 +1,106 @@
 package web.request;
 
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
 /**
- * Accepted headers for http requests
+ * Accepted headers for http requests.
+ * List-valued fields carry the separator their repeated lines are joined with, every other field may
+ * only be sent once.
  */
 public enum Header {
    
-    AIM,
-    ACCEPT,
-    ACCEPT_CHARSET,
+    AIM(", "),
+    ACCEPT(", "),
+    ACCEPT_CHARSET(", "),
     ACCEPT_DATETIME,
-    ACCEPT_ENCODING,
+    ACCEPT_ENCODING(", "),
     ACCEPT_CONTROL_REQUEST_METHOD,
     AUTHORIZATION,
-    CACHE_CONTROL,
-    CONNECTION,
-    CONTENT_ENCODING,
+    CACHE_CONTROL(", "),
+    CONNECTION(", "),
+    CONTENT_ENCODING(", "),
     CONTENT_LENGTH,
     CONTENT_MD5,
     CONTENT_TYPE,
-    COOKIE,
+    COOKIE("; "),
     DATE,
-    EXPECT,
-    FORWARDED,
+    EXPECT(", "),
+    FORWARDED(", "),
     FROM,
     HOST,
     HTTP2_SETTINGS,
-    IF_MATCH,
+    IF_MATCH(", "),
     IF_MODIFIED_SINCE,
-    IF_NONE_MATCH,
+    IF_NONE_MATCH(", "),
     IF_RANGE,
     IF_UNMODIFIED_SINCE,
     MAX_FORWARDS,
     ORIGIN,
-    PRAGMA,
-    PREFER,
+    PRAGMA(", "),
+    PREFER(", "),
     PROXY_AUTHORIZATION,
     RANGE,
     REFERER,
-    TE,
-    TRAILER,
-    TRANSFER_ENCODING,
+    TE(", "),
+    TRAILER(", "),
+    TRANSFER_ENCODING(", "),
     USER_AGENT,
-    UPGRADE,
-    VIA,
-    WARNING;
+    UPGRADE(", "),
+    VIA(", "),
+    WARNING(", ");
+
+    // open addressing table of the field names, sized and hashed so that no two names share a slot
+    private static final int TABLE_SIZE = 256;
+    private static final Header[] TABLE;
+    private static final int MULTIPLIER;
+    private static final Map<String, Header> BY_NAME = new HashMap<>();
+
+    static {
+        Header[] table = null;
+        int multiplier = 31;
+        while (table == null) {
+            table = new Header[TABLE_SIZE];
+            for (Header header : Header.values()) {
+                int slot = hash(header.fieldName, 0, header.fieldName.length, multiplier) & (TABLE_SIZE - 1);
+                if (table[slot] != null) {
+                    table = null;
+                    multiplier += 2;
+                    break;
+                }
+                table[slot] = header;
+            }
+        }
+        TABLE = table;
+        MULTIPLIER = multiplier;
+        for (Header header : Header.values()) {
+            BY_NAME.put(header.name(), header);
+        }
+    }
+
+    // field name as sent on the wire, lower case with dashes
+    private final byte[] fieldName;
+    // null for singleton fields
+    private final String listSeparator;
+
+    Header() {
+        this(null);
+    }
+
+    Header(String listSeparator) {
+        this.fieldName = this.name().toLowerCase(Locale.ROOT).replace('_', '-').getBytes(StandardCharsets.ISO_8859_1);
+        this.listSeparator = listSeparator;
+    }
+
+    /**
+     * @return the separator repeated lines of the field are joined with, ", " for lists and "; " for Cookie,
+     * null if the field may only be sent once
+     */
+    public String getListSeparator() {
+        return this.listSeparator;
+    }
 
     /**
      * Returns a boolean value based on whether supplied string matches any preset recognized http header
@@ -52,9 +109,38 @@ public enum Header {
      * @return boolean value based on whether enum match was found
      */
     public static boolean contains(String toMatch){
-        for(Header header: Header.values())
-             if (header.name().equals(toMatch))
-                return true;
-        return false;
-      } 
-}
\ No newline at end of file
+        return BY_NAME.containsKey(toMatch);
+    }
+
+    /**
+     * Finds the header of a field name without decoding it, one hash and one comparison
+     * @param bytes buffer holding the field name as received, matched case-insensitively
+     * @param from index of the first byte of the name
+     * @param to index after the last byte of the name
+     * @return the recognized header, null for any other field
+     */
+    public static Header lookup(byte[] bytes, int from, int to) {
+        Header candidate = TABLE[hash(bytes, from, to, MULTIPLIER) & (TABLE_SIZE - 1)];
+        if (candidate == null || candidate.fieldName.length != to - from) {
+            return null;
+        }
+        for (int i = from; i < to; i++) {
+            if (toLowerCase(bytes[i]) != candidate.fieldName[i - from]) {
+                return null;
+            }
+        }
+        return candidate;
+    }
+
+    private static int hash(byte[] bytes, int from, int to, int multiplier) {
+        int hash = to - from;
+        for (int i = from; i < to; i++) {
+            hash = hash * multiplier + toLowerCase(bytes[i]);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
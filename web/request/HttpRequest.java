@@ -1,27 +1,28 @@
 package web.request;
 
-import java.io.IOException;
-import java.net.Socket;
-import java.util.HashMap;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
 
 public class HttpRequest {
 
     private String method = "NONE";
     private String identifier;
     private String version;
-    private final HashMap<Header,String> headers = new HashMap<>();
-    private byte[] body;
+    private final EnumMap<Header,String> headers = new EnumMap<>(Header.class);
+    // fields that are not a Header, only allocated when a request has any
+    private Map<String,String> extensionHeaders;
+    private RequestBodyInputStream body;
     private boolean badRequest = false;
+    private int errorStatus = 400;
+    private boolean endOfStream = false;
 
     /**
-     * Creates an populates http request fields for object including Method, Identifier, Version, Headers(hashMap), and an optional body
-     * @param socket any Socket with a httpRequest in the inputStream
-     * @throws IOException if socket is lost somewhere along the way
+     * Creates an empty http request, its fields (Method, Identifier, Version, Headers(hashMap), and an optional body)
+     * are populated by {@link HttpRequestParser}
      */
-    public HttpRequest(Socket socket) throws IOException {
-        new HttpRequestParser(socket, this);
+    public HttpRequest() {
     }
 
     /**
@@ -75,7 +76,7 @@ public class HttpRequest {
     }
 
     /**
-     * Sets the specified Header (enum value) with its corresponding value in a Hashmap<Header, String>
+     * Sets the specified Header (enum value) with its corresponding value in an EnumMap<Header, String>
      * @param header enum
      * @param value header value
      */
@@ -83,6 +84,25 @@ public class HttpRequest {
         headers.put(header, value);
     }
 
+    /**
+     * Adds a received header line, a list-valued field sent more than once is joined into one value
+     * @param header enum
+     * @param value header value
+     * @return FALSE if the field may only be sent once and the request already has it
+     */
+    public boolean addHeader(Header header, String value){
+        String previous = headers.get(header);
+        if (previous == null) {
+            headers.put(header, value);
+            return true;
+        }
+        if (header.getListSeparator() == null) {
+            return false;
+        }
+        headers.put(header, previous + header.getListSeparator() + value);
+        return true;
+    }
+
     /**
      * If the request has a specific header TRUE is returned, otherwise FALSE is returned
      * @param header to search for
@@ -108,23 +128,52 @@ public class HttpRequest {
         return headers;
     }
 
+    /**
+     * Keeps a field that is not a recognized Header so it can be passed on, e.g. to CGI scripts.
+     * A field sent more than once is combined into one comma separated value
+     * @param name field name as received
+     * @param value field value
+     */
+    public void addExtensionHeader(String name, String value){
+        if (extensionHeaders == null) {
+            extensionHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        }
+        extensionHeaders.merge(name, value, (previous, next) -> previous + ", " + next);
+    }
+
+    /**
+     * @return fields that are not a recognized Header by name, matched case-insensitively
+     */
+    public Map<String,String> getExtensionHeaders(){
+        return extensionHeaders == null ? Map.of() : extensionHeaders;
+    }
+
 
     /**
      * Sets the http request body
-     * @param body string
+     * @param body stream over the Content-Length bytes of the body
      */
-    public void setBody(byte[] body){
+    public void setBody(RequestBodyInputStream body){
         this.body = body;
     }
     
     /**
-     * Returns the http request body if there is one, otherwise will return blank value
-     * @return request body in Byte[] format can be blank
+     * Returns the http request body if there is one, otherwise will return null.
+     * The body is read from the connection as the stream is consumed, it can only be read once
+     * @return request body stream, null if the request has no Content-Length
      */
-    public byte[] getBody(){
+    public RequestBodyInputStream getBody(){
         return body;
     }
-    
+
+    /**
+     * Returns TRUE if the client waits for a 100 Continue interim response before sending the body
+     * @return TRUE if an "Expect: 100-continue" header was sent with a HTTP/1.1 request
+     */
+    public boolean expectsContinue() {
+        return "HTTP/1.1".equals(this.version) && "100-continue".equalsIgnoreCase(this.headers.get(Header.EXPECT));
+    }
+
     /**
      * if the request fails to parse -> bad request should be flagged
      */
@@ -132,6 +181,22 @@ public class HttpRequest {
         this.badRequest = true;
     }
 
+    /**
+     * if the request is rejected while parsing -> bad request is flagged with the status to answer with
+     * @param errorStatus e.g. 414 for an overlong request line or 431 for oversized headers
+     */
+    public void setBadRequest(int errorStatus){
+        this.badRequest = true;
+        this.errorStatus = errorStatus;
+    }
+
+    /**
+     * @return status code to answer an invalid request with, 400 unless the parser flagged a more specific one
+     */
+    public int getErrorStatus() {
+        return errorStatus;
+    }
+
     /**
      * Returns TRUE if the badRequest boolean is ever flagged
      * @return TRUE if badRequest is ever flagged as true.
@@ -140,6 +205,42 @@ public class HttpRequest {
         return badRequest;
     }
 
+    /**
+     * Flags that the connection was closed (or went idle) before any part of a request arrived
+     */
+    public void setEndOfStream(){
+        this.endOfStream = true;
+    }
+
+    /**
+     * Returns TRUE if no request could be read because the client closed or abandoned the connection
+     * @return TRUE if the connection has no further requests
+     */
+    public boolean isEndOfStream() {
+        return endOfStream;
+    }
+
+    /**
+     * Returns TRUE if the client allows the connection to stay open after the response.
+     * HTTP/1.1 connections are persistent unless "Connection: close" is sent,
+     * HTTP/1.0 connections only when "Connection: keep-alive" is sent
+     * @return TRUE if the connection may be reused for another request
+     */
+    public boolean isKeepAlive() {
+        String connection = Optional.ofNullable(this.headers.get(Header.CONNECTION)).orElse("").toLowerCase();
+        if ("HTTP/1.0".equals(this.version)) {
+            return connection.contains("keep-alive");
+        }
+        return !connection.contains("close");
+    }
+
+    /**
+     * @return TRUE if the client understands Transfer-Encoding: chunked responses (HTTP/1.1 and later)
+     */
+    public boolean acceptsChunked() {
+        return this.version != null && !"HTTP/1.0".equals(this.version);
+    }
+
     /**
      * Formats the request line exactly how it was recieved but surrounded by quotes
      * @return formatted request line surrounded by quotes -> "Method URI httpVersion"
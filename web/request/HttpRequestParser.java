@@ -1,84 +1,334 @@
 package web.request;
 
-import java.io.BufferedInputStream;
+import web.metrics.MetricsRegistry;
+
 import java.io.IOException;
-import java.net.Socket;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Incremental http request parser, one instance per connection.
+ * <p>
+ * Bytes are collected in a reusable buffer and run through a small state machine
+ * (request line, headers). Every byte is scanned for a line feed once, so a request split
+ * across any number of reads is parsed correctly and bytes of pipelined requests that follow are
+ * kept for the next call. The request line is limited to MAX_REQUEST_LINE_SIZE (414 URI Too Long)
+ * and the header block to MAX_HEADER_SIZE (431 Request Header Fields Too Large).
+ * <p>
+ * A request is complete once its headers are parsed, the body is not buffered but exposed as a
+ * {@link RequestBodyInputStream} reading from the parse buffer and then the connection source.
+ * Bodies announced larger than the configured maximum are rejected with 413 Content Too Large.
+ */
 public class HttpRequestParser {
 
-    private HttpRequest request;
-    private String requestLine;
-    private String headerString;
-    private byte[] rawBody;
+    public static final int MAX_REQUEST_LINE_SIZE = 8 * 1024;
+    public static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private enum State {
+        REQUEST_LINE,
+        HEADERS,
+        COMPLETE
+    }
+
+    private final InputStream source;
+    private final long maxBodySize;
 
+    private byte[] buffer;
+    // unconsumed bytes are buffer[start, end), buffer[start, scanned) is known to hold no line feed
+    private int start;
+    private int end;
+    private int scanned;
+    private State state = State.REQUEST_LINE;
+    private HttpRequest request = new HttpRequest();
+    private int headerBytes;
 
     /**
-     * Constructor parses the httpRequest filling respective HttpRequest fields
-     * @param socket
-     * @param request
-     * @throws IOException
+     * @param source blocking stream of the connection, request bodies are read from it
+     * @param maxBodySize largest Content-Length accepted
      */
-    public HttpRequestParser(Socket socket, HttpRequest request){
+    public HttpRequestParser(InputStream source, long maxBodySize) {
+        this.source = source;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Reads the next request head from the source, only reading as many bytes as are missing.
+     * The body of the previous request must have been consumed first.
+     * @return the parsed request, flagged as end of stream if the client closed or abandoned the connection
+     * @throws IOException if the connection fails
+     */
+    public HttpRequest readRequest() throws IOException {
+        this.ensureBuffer();
         try {
-            this.request = request;
-            this.readAndParseFullMessage(socket);
-        } catch (Exception e) {
-            System.err.println("Error occurred when creating request");
-            e.printStackTrace();
-        }
-    }
-
-    // ensures that entire http request is read in (because requests are parsed in
-    // series of packets and those may not be loaded into memory instantly)
-    private void readAndParseFullMessage(Socket socket) throws IOException {
-        BufferedInputStream stream = new BufferedInputStream(socket.getInputStream());
-        
-        // Read and parse headers from input stream
-        StringBuilder requestMessageBuilder = new StringBuilder();
-        byte[] previousBytes = new byte[3];
-        do {
-            int b = stream.read();
-            if (b == -1) {
-                break;
-            }
-            requestMessageBuilder.append((char) b);
-            if (previousBytes[0] == '\r' && previousBytes[1] == '\n' && previousBytes[2] == '\r' && b == '\n') {
-                break;
-            }
-            previousBytes[0] = previousBytes[1];
-            previousBytes[1] = previousBytes[2];
-            previousBytes[2] = (byte) b;
-        } while (stream.available() > 0);
-
-        // Set request fields (method, id, headers)
-        String requestMessage = requestMessageBuilder.toString();
-        int requestMessageFirstCrlf = requestMessage.indexOf("\r\n");
-        if (requestMessageFirstCrlf == -1) {
-            this.requestLine = requestMessage;
-        } else {
-            this.requestLine = requestMessage.substring(0, requestMessageFirstCrlf + 2);
-            this.headerString = requestMessage.substring(requestMessageFirstCrlf + 2);
-            parseHeaders(this.headerString);
-        }
-        setRequestMethodAndIDs(this.requestLine);
-
-        // Read body from input stream
-        if (this.request.hasHeader(Header.CONTENT_LENGTH)) {
-            this.rawBody = new byte[Integer.parseInt(this.request.getHeaderValue(Header.CONTENT_LENGTH))];
-            int i = 0;
-            do {
-                if (i >= this.rawBody.length) {
-                    break;
+            while (!this.advance()) {
+                this.compact();
+                int read = this.source.read(this.buffer, this.end, this.buffer.length - this.end);
+                if (read > 0) {
+                    this.end += read;
+                    MetricsRegistry.getInstance().addBytesIn(read);
                 }
-                int b = stream.read();
-                if (b == -1) {
+                if (read == -1) {
+                    if (this.state == State.REQUEST_LINE && this.start == this.end) {
+                        this.request.setEndOfStream();
+                    } else {
+                        this.fail(400);
+                    }
                     break;
                 }
-                this.rawBody[i++] = (byte) b;
-            } while (stream.available() > 0);
+            }
+        } catch (SocketTimeoutException | SocketException e) {
+            // idle keep alive connection timed out or was reset by the client
+            this.request.setEndOfStream();
+        }
+        return this.takeRequest();
+    }
+
+    /**
+     * Copies bytes received by a non-blocking engine into the parse buffer
+     * @param input received bytes, advanced by the number of bytes copied
+     * @return number of bytes copied, limited by {@link #remainingCapacity()}
+     */
+    public int feed(ByteBuffer input) {
+        this.ensureBuffer();
+        this.compact();
+        int length = Math.min(input.remaining(), this.buffer.length - this.end);
+        input.get(this.buffer, this.end, length);
+        this.end += length;
+        MetricsRegistry.getInstance().addBytesIn(length);
+        return length;
+    }
+
+    /**
+     * @return number of bytes that can currently be passed to {@link #feed(ByteBuffer)}
+     */
+    public int remainingCapacity() {
+        this.ensureBuffer();
+        this.compact();
+        return this.buffer.length - this.end;
+    }
+
+    /**
+     * Runs the state machine over the buffered bytes
+     * @return TRUE once a complete (or rejected) request is available from {@link #takeRequest()}
+     */
+    public boolean advance() {
+        while (true) {
+            switch (this.state) {
+                case REQUEST_LINE, HEADERS -> {
+                    int lineFeed = this.findLineFeed();
+                    if (lineFeed == -1) {
+                        int pendingLineLength = this.end - this.start;
+                        if (this.state == State.REQUEST_LINE && pendingLineLength > MAX_REQUEST_LINE_SIZE) {
+                            this.fail(414);
+                        } else if (this.state == State.HEADERS && this.headerBytes + pendingLineLength > MAX_HEADER_SIZE) {
+                            this.fail(431);
+                        } else {
+                            return false;
+                        }
+                        continue;
+                    }
+                    int lineStart = this.start;
+                    int lineEnd = lineFeed > lineStart && this.buffer[lineFeed - 1] == '\r' ? lineFeed - 1 : lineFeed;
+                    this.start = lineFeed + 1;
+                    this.scanned = this.start;
+                    if (this.state == State.REQUEST_LINE) {
+                        // empty lines ahead of a request line are ignored
+                        if (lineEnd > lineStart) {
+                            this.parseRequestLine(lineStart, lineEnd);
+                        }
+                    } else if (lineEnd == lineStart) {
+                        this.endOfHeaders();
+                    } else {
+                        this.headerBytes += this.start - lineStart;
+                        this.parseHeaderLine(lineStart, lineEnd);
+                    }
+                }
+                case COMPLETE -> {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands out the request completed by {@link #advance()} and resets the parser for the next one,
+     * bytes already buffered for a following request are kept
+     * @return the completed request
+     */
+    public HttpRequest takeRequest() {
+        HttpRequest completed = this.request;
+        this.request = new HttpRequest();
+        this.state = State.REQUEST_LINE;
+        this.headerBytes = 0;
+        return completed;
+    }
+
+    /**
+     * Copies buffered bytes that follow the current request head, used by the body stream
+     * @return number of bytes copied, 0 if nothing is buffered
+     */
+    int readBuffered(byte[] b, int off, int len) {
+        int length = Math.min(len, this.bufferedLength());
+        if (length > 0) {
+            System.arraycopy(this.buffer, this.start, b, off, length);
+            this.start += length;
+        }
+        return length;
+    }
+
+    int bufferedLength() {
+        return this.buffer == null ? 0 : this.end - this.start;
+    }
+
+    InputStream getSource() {
+        return this.source;
+    }
+
+    /**
+     * Frees the parse buffer if it holds no bytes, so idle connections do not pin memory
+     */
+    public void releaseIfIdle() {
+        if (this.state == State.REQUEST_LINE && this.start == this.end) {
+            this.buffer = null;
+            this.start = 0;
+            this.end = 0;
+            this.scanned = 0;
+        }
+    }
+
+    private void ensureBuffer() {
+        if (this.buffer == null) {
+            this.buffer = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private void compact() {
+        if (this.start > 0) {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+            this.end -= this.start;
+            this.scanned = Math.max(0, this.scanned - this.start);
+            this.start = 0;
+        }
+    }
+
+    private int findLineFeed() {
+        for (int i = Math.max(this.scanned, this.start); i < this.end; i++) {
+            if (this.buffer[i] == '\n') {
+                return i;
+            }
+        }
+        this.scanned = this.end;
+        return -1;
+    }
+
+    private void fail(int status) {
+        this.request.setBadRequest(status);
+        this.state = State.COMPLETE;
+    }
+
+    private void parseRequestLine(int from, int to) {
+        if (to - from > MAX_REQUEST_LINE_SIZE) {
+            this.fail(414);
+            return;
+        }
+        int firstSpace = this.indexOf((byte) ' ', from, to);
+        int secondSpace = firstSpace == -1 ? -1 : this.indexOf((byte) ' ', firstSpace + 1, to);
+        if (firstSpace <= from || secondSpace <= firstSpace + 1 || secondSpace + 1 >= to
+                || this.indexOf((byte) ' ', secondSpace + 1, to) != -1) {
+            this.fail(400);
+            return;
+        }
+        this.request.setMethodAndIDs(new String[]{
+                this.decode(from, firstSpace),
+                this.decode(firstSpace + 1, secondSpace),
+                this.decode(secondSpace + 1, to)
+        });
+        this.state = State.HEADERS;
+    }
+
+    private void parseHeaderLine(int from, int to) {
+        if (this.headerBytes > MAX_HEADER_SIZE) {
+            this.fail(431);
+            return;
+        }
+        int colon = this.indexOf((byte) ':', from, to);
+        if (colon <= from) {
+            this.fail(400);
+            return;
+        }
+        for (int i = from; i < colon; i++) {
+            if (this.buffer[i] == ' ' || this.buffer[i] == '\t') {
+                this.fail(400);
+                return;
+            }
+        }
+        int valueStart = colon + 1;
+        int valueEnd = to;
+        while (valueStart < valueEnd && (this.buffer[valueStart] == ' ' || this.buffer[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (this.buffer[valueEnd - 1] == ' ' || this.buffer[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+
+        // field names are matched against the Header enum on the raw bytes, other fields are kept by name
+        Header header = Header.lookup(this.buffer, from, colon);
+        if (header != null) {
+            // a repeated singleton such as Host or Content-Length leaves the request ambiguous
+            if (!this.request.addHeader(header, this.decode(valueStart, valueEnd))) {
+                this.fail(400);
+            }
+        } else {
+            this.request.addExtensionHeader(this.decode(from, colon), this.decode(valueStart, valueEnd));
+        }
+    }
+
+    /**
+     * @param value Content-Length field value
+     * @return the length, -1 unless the value is 1*DIGIT (no sign, list or whitespace) small enough for a long
+     */
+    private static long parseContentLength(String value) {
+        if (value.isEmpty() || value.length() > 18) {
+            return -1;
+        }
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            length = length * 10 + (c - '0');
+        }
+        return length;
+    }
+
+    private void endOfHeaders() {
+        this.state = State.COMPLETE;
+        if (this.request.hasHeader(Header.TRANSFER_ENCODING)) {
+            // chunked request bodies are not supported, the body cannot be skipped without decoding it
+            // so the connection is closed instead of parsing it as the next request
+            this.fail(501);
+            return;
+        }
+        String contentLength = this.request.getHeaderValue(Header.CONTENT_LENGTH);
+        long length = -1;
+        if (contentLength != null) {
+            length = parseContentLength(contentLength);
+            if (length < 0) {
+                this.fail(400);
+                return;
+            }
+            if (length > this.maxBodySize) {
+                this.fail(413);
+                return;
+            }
+            this.request.setBody(new RequestBodyInputStream(this, length));
         }
 
-        // Set request body
         switch (this.request.getMethod()) {
             // request body is disregarded if there is one
             case "GET":
@@ -88,56 +338,31 @@ public class HttpRequestParser {
             // requests MUST have body but can be empty
             case "POST":
             case "PUT":
-                if (this.rawBody != null) {
-                    request.setBody(this.rawBody);
-                } else {
-                    request.setBadRequest();
+                if (length == -1) {
+                    this.request.setBadRequest();
                 }
                 break;
 
             // requests MAY have body
             case "DELETE":
-                if (this.rawBody != null) {
-                    request.setBody(this.rawBody);
-                }
                 break;
 
             default:
-                request.setBadRequest();
+                this.request.setBadRequest();
                 break;
         }
     }
 
-    private void setRequestMethodAndIDs(String requestLine) {
-        String[] requestLineTokens = requestLine.split(" ");
-
-        if (requestLineTokens.length != 3) {
-            request.setBadRequest();
-        } else {
-            this.request.setMethodAndIDs(requestLineTokens);
+    private int indexOf(byte target, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (this.buffer[i] == target) {
+                return i;
+            }
         }
+        return -1;
     }
 
-    private void parseHeaders(String headers) {
-        try {
-            String[] carriageSplit = headers.split("\r\n");
-
-            for (String line : carriageSplit) {
-                String[] fieldAndValue = line.split(": ");
-                String field = fieldAndValue[0];
-                String value = fieldAndValue[1];
-                String formattedField = field.trim().toUpperCase().replace("-", "_");
-
-                // ensures that header is valid and recognized according to standards
-                if (Header.contains(formattedField)) {
-                    this.request.setHeader(Header.valueOf(formattedField), value);
-                } else {
-                    // throw flag for unrecognized header
-                    // DOES NOT HAVE TO STOP REQUEST
-                }
-            }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            this.request.setBadRequest();
-        }
+    private String decode(int from, int to) {
+        return new String(this.buffer, from, to - from, StandardCharsets.ISO_8859_1);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,96 @@
+package web.request;
+
+import web.metrics.MetricsRegistry;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream over the Content-Length bytes of a request body.
+ * <p>
+ * Bytes the parser already buffered are returned first, the rest is read straight from the
+ * connection, never past the end of the body so a following pipelined request stays intact.
+ * Closing the stream does not close the connection.
+ */
+public class RequestBodyInputStream extends InputStream {
+
+    private final HttpRequestParser parser;
+    private final long length;
+    private long remaining;
+
+    RequestBodyInputStream(HttpRequestParser parser, long length) {
+        this.parser = parser;
+        this.length = length;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = this.read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (this.remaining == 0) {
+            return -1;
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int wanted = (int) Math.min(len, this.remaining);
+        int read = this.parser.readBuffered(b, off, wanted);
+        if (read == 0) {
+            read = this.parser.getSource().read(b, off, wanted);
+            if (read == -1) {
+                throw new EOFException(String.format("Request body ended after %d of %d bytes", this.length - this.remaining, this.length));
+            }
+            MetricsRegistry.getInstance().addBytesIn(read);
+        }
+        this.remaining -= read;
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(this.remaining, this.parser.bufferedLength());
+    }
+
+    /**
+     * Reads and discards what is left of the body so the next request on the connection can be parsed
+     * @param limit maximum number of bytes worth discarding
+     * @return TRUE if the body was fully consumed, FALSE if more than limit bytes were left (nothing is read then)
+     * @throws IOException if the connection fails
+     */
+    public boolean discardRemaining(long limit) throws IOException {
+        if (this.remaining > limit) {
+            return false;
+        }
+        byte[] scratch = new byte[(int) Math.min(8192, Math.max(this.remaining, 1))];
+        while (this.remaining > 0) {
+            this.read(scratch, 0, scratch.length);
+        }
+        return true;
+    }
+
+    /**
+     * @return total body length announced by Content-Length
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return number of body bytes not read yet
+     */
+    public long getRemaining() {
+        return this.remaining;
+    }
+
+    @Override
+    public void close() {
+        // the connection outlives the body, unread bytes are discarded by the handler
+    }
+}
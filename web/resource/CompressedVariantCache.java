@@ -0,0 +1,170 @@
+package web.resource;
+
+import web.server.configuration.HttpdConf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Shared in-memory cache of static files compressed on the fly, keyed by path and content coding.
+ * <p>
+ * Each variant remembers the size and modification time of the file it was compressed from and is
+ * compressed again once they change. The cache is bounded by CompressionCacheMaxBytes and evicts the
+ * least recently used variants. Only files between CompressionMinSize and CompressionMaxFileSize are
+ * compressed, smaller ones gain nothing and larger ones are sent as they are.
+ */
+public final class CompressedVariantCache {
+
+    private static final long DEFAULT_MIN_SIZE = 1024;
+    private static final long DEFAULT_MAX_FILE_SIZE = 8L * 1024 * 1024;
+    private static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    private static final CompressedVariantCache INSTANCE = new CompressedVariantCache(ConfigResource.getHttpdConf());
+
+    private static final class Key {
+        private final Path path;
+        private final ContentEncoding encoding;
+
+        private Key(Path path, ContentEncoding encoding) {
+            this.path = path;
+            this.encoding = encoding;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && this.path.equals(key.path) && this.encoding == key.encoding;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.path, this.encoding);
+        }
+    }
+
+    private static final class Variant {
+        private final ByteBuffer content;
+        private final long sourceLength;
+        private final long sourceModifiedMillis;
+
+        private Variant(ByteBuffer content, long sourceLength, long sourceModifiedMillis) {
+            this.content = content;
+            this.sourceLength = sourceLength;
+            this.sourceModifiedMillis = sourceModifiedMillis;
+        }
+    }
+
+    private final long minSize;
+    private final long maxFileSize;
+    private final long maxBytes;
+    // access ordered so iteration starts at the least recently used variant
+    private final LinkedHashMap<Key, Variant> variants = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    private CompressedVariantCache(HttpdConf httpdConf) {
+        this.minSize = httpdConf.getCompressionMinSize().orElse(DEFAULT_MIN_SIZE);
+        this.maxFileSize = httpdConf.getCompressionMaxFileSize().orElse(DEFAULT_MAX_FILE_SIZE);
+        this.maxBytes = httpdConf.getCompressionCacheMaxBytes().orElse(DEFAULT_MAX_BYTES);
+    }
+
+    public static CompressedVariantCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param length size of the file
+     * @return TRUE if a file of this size is compressed on the fly
+     */
+    public boolean isCompressible(long length) {
+        return length >= this.minSize && length <= this.maxFileSize;
+    }
+
+    /**
+     * Returns the compressed file, compressing it on a miss
+     * @param path resolved path of the file
+     * @param validators current validators of the file
+     * @param encoding coding to compress with, must be {@link ContentEncoding#isCompressible()}
+     * @return an independent read-only view of the compressed bytes
+     * @throws IOException if the file cannot be read
+     */
+    public ByteBuffer get(Path path, ValidatorIndex.Validators validators, ContentEncoding encoding) throws IOException {
+        Key key = new Key(path, encoding);
+        synchronized (this) {
+            Variant variant = this.variants.get(key);
+            if (variant != null && variant.sourceLength == validators.getLength() && variant.sourceModifiedMillis == validators.getModifiedMillis()) {
+                this.hitCount.increment();
+                return variant.content.duplicate();
+            }
+        }
+        this.missCount.increment();
+
+        Variant variant = new Variant(this.compress(path, encoding), validators.getLength(), validators.getModifiedMillis());
+        synchronized (this) {
+            Variant previous = this.variants.put(key, variant);
+            if (previous != null) {
+                this.currentBytes -= previous.content.capacity();
+            }
+            this.currentBytes += variant.content.capacity();
+            Iterator<Map.Entry<Key, Variant>> iterator = this.variants.entrySet().iterator();
+            while (this.currentBytes > this.maxBytes && iterator.hasNext()) {
+                Variant eldest = iterator.next().getValue();
+                iterator.remove();
+                this.currentBytes -= eldest.content.capacity();
+            }
+        }
+        return variant.content.duplicate();
+    }
+
+    /**
+     * Returns the compressed file only if it is cached, e.g. to answer HEAD without compressing
+     * @param path resolved path of the file
+     * @param validators current validators of the file
+     * @param encoding coding the file was compressed with
+     * @return an independent read-only view of the compressed bytes, null if they are not cached
+     */
+    public synchronized ByteBuffer getIfCached(Path path, ValidatorIndex.Validators validators, ContentEncoding encoding) {
+        Variant variant = this.variants.get(new Key(path, encoding));
+        if (variant == null || variant.sourceLength != validators.getLength() || variant.sourceModifiedMillis != validators.getModifiedMillis()) {
+            return null;
+        }
+        this.hitCount.increment();
+        return variant.content.duplicate();
+    }
+
+    private ByteBuffer compress(Path path, ContentEncoding encoding) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (InputStream inputStream = Files.newInputStream(path);
+             OutputStream outputStream = encoding == ContentEncoding.GZIP ? new GZIPOutputStream(compressed) : new DeflaterOutputStream(compressed)) {
+            inputStream.transferTo(outputStream);
+        }
+        byte[] bytes = compressed.toByteArray();
+        ByteBuffer content = ByteBuffer.allocateDirect(bytes.length);
+        content.put(bytes).flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return this.currentBytes;
+    }
+}
@@ -1,24 +1,64 @@
 package web.resource;
 
+import web.authorization.AuthFileCache;
 import web.server.configuration.HttpdConf;
 import web.server.configuration.MimeTypes;
 import web.server.configuration.utils.ConfigurationReader;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
 
 public final class ConfigResource {
 
+    static final String HTTPD_CONF = "conf/httpd.conf";
+    static final String MIME_TYPES = "conf/mime.types";
+
     private static ConfigResource instance;
-    private static HttpdConf httpdConf;
-    private static MimeTypes mimeTypes;
+    private static final AtomicReference<ConfigSnapshot> snapshot = new AtomicReference<>();
     private static final Integer DEFAULT_PORT = 8080;
 
+    // directives read once by long-lived components, a reload cannot apply them
+    private static final Map<String, Function<HttpdConf, Optional<?>>> RESTART_DIRECTIVES = new LinkedHashMap<>();
+
+    static {
+        RESTART_DIRECTIVES.put("Listen", HttpdConf::getListen);
+        RESTART_DIRECTIVES.put("Engine", HttpdConf::getEngine);
+        RESTART_DIRECTIVES.put("EventLoops", HttpdConf::getEventLoops);
+        RESTART_DIRECTIVES.put("WorkerModel", HttpdConf::getWorkerModel);
+        RESTART_DIRECTIVES.put("MaxWorkers", HttpdConf::getMaxWorkers);
+        RESTART_DIRECTIVES.put("AcceptQueue", HttpdConf::getAcceptQueue);
+        RESTART_DIRECTIVES.put("LogFile", HttpdConf::getLogFile);
+        RESTART_DIRECTIVES.put("AccessLogBufferSize", HttpdConf::getAccessLogBufferSize);
+        RESTART_DIRECTIVES.put("AccessLogOverflow", HttpdConf::getAccessLogOverflow);
+        RESTART_DIRECTIVES.put("CacheMaxBytes", HttpdConf::getCacheMaxBytes);
+        RESTART_DIRECTIVES.put("CacheMaxFileSize", HttpdConf::getCacheMaxFileSize);
+        RESTART_DIRECTIVES.put("MmapMinFileSize", HttpdConf::getMmapMinFileSize);
+        RESTART_DIRECTIVES.put("MmapMaxBytes", HttpdConf::getMmapMaxBytes);
+        RESTART_DIRECTIVES.put("AuthCacheMode", HttpdConf::getAuthCacheMode);
+        RESTART_DIRECTIVES.put("CompressionMinSize", HttpdConf::getCompressionMinSize);
+        RESTART_DIRECTIVES.put("CompressionMaxFileSize", HttpdConf::getCompressionMaxFileSize);
+        RESTART_DIRECTIVES.put("CompressionCacheMaxBytes", HttpdConf::getCompressionCacheMaxBytes);
+        RESTART_DIRECTIVES.put("FastCgiServer", HttpdConf::getFastCgiServers);
+        RESTART_DIRECTIVES.put("CgiTimeout", HttpdConf::getCgiTimeout);
+        RESTART_DIRECTIVES.put("CgiMaxProcesses", HttpdConf::getCgiMaxProcesses);
+        RESTART_DIRECTIVES.put("CgiMaxProcessesPerAlias", HttpdConf::getCgiMaxProcessesPerAlias);
+    }
+
     private ConfigResource() {}
 
     // static block initialization for exception handling
     static {
         try {
-            httpdConf = new HttpdConf(ConfigurationReader.readConfiguration("conf/httpd.conf"));
-            mimeTypes = new MimeTypes(ConfigurationReader.readConfiguration("conf/mime.types"));
+            HttpdConf httpdConf = new HttpdConf(ConfigurationReader.readConfiguration(HTTPD_CONF));
+            MimeTypes mimeTypes = new MimeTypes(ConfigurationReader.readConfiguration(MIME_TYPES), httpdConf.getAddDefaultCharset().orElse(null));
+            snapshot.set(new ConfigSnapshot(1, httpdConf, mimeTypes, new RouteTable(httpdConf)));
             instance = new ConfigResource();
         } catch (Exception e) {
             System.out.println("Configuration files not found...");
@@ -30,16 +70,68 @@ public final class ConfigResource {
         return instance;
     }
 
+    /**
+     * @return the current configuration, requests should take it once and keep it until they are answered
+     */
+    public static ConfigSnapshot getSnapshot() {
+        return snapshot.get();
+    }
+
     public static HttpdConf getHttpdConf() {
-        return httpdConf;
+        return snapshot.get().getHttpdConf();
     }
 
     public static MimeTypes getMimeTypes() {
-        return mimeTypes;
+        return snapshot.get().getMimeTypes();
     }
 
     public static Integer getDefaultPort(){
         return DEFAULT_PORT;
     }
 
+    /**
+     * Reads httpd.conf and mime.types again and swaps in the new snapshot, requests already running keep
+     * the previous one. Caches are only invalidated where the change affects them: the route table is
+     * kept if routing did not change, cached files are dropped if they are no longer served. Content
+     * types memoized with the routes are resolved again against the new MIME table when next asked for.
+     * @return TRUE if the new configuration is in effect, FALSE if it was rejected and the current one is kept
+     */
+    public static synchronized boolean reload() {
+        ConfigSnapshot current = snapshot.get();
+        HttpdConf httpdConf;
+        MimeTypes mimeTypes;
+        try {
+            // the reader treats a missing file as an empty one, which must not wipe the configuration
+            for (String file : new String[]{HTTPD_CONF, MIME_TYPES}) {
+                if (!Files.isRegularFile(Paths.get(file))) {
+                    throw new IOException(file + " does not exist");
+                }
+            }
+            httpdConf = new HttpdConf(ConfigurationReader.readConfiguration(HTTPD_CONF));
+            mimeTypes = new MimeTypes(ConfigurationReader.readConfiguration(MIME_TYPES), httpdConf.getAddDefaultCharset().orElse(null));
+            if (httpdConf.getDocumentRoot().isEmpty()) {
+                throw new IOException("DocumentRoot is missing");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Warning: ConfigResource: Configuration not reloaded: %s%n", e.getMessage());
+            return false;
+        }
+
+        RouteTable routeTable = current.getRouteTable().routesLike(httpdConf) ? current.getRouteTable() : new RouteTable(httpdConf);
+        ConfigSnapshot next = new ConfigSnapshot(current.getVersion() + 1, httpdConf, mimeTypes, routeTable);
+        snapshot.set(next);
+
+        if (routeTable != current.getRouteTable()) {
+            StaticFileCache.getInstance().invalidateIf(path -> !routeTable.serves(path));
+            MappedFileCache.getInstance().invalidateIf(path -> !routeTable.serves(path));
+            AuthFileCache.getInstance().invalidateIf(path -> !routeTable.serves(path));
+        }
+        for (Map.Entry<String, Function<HttpdConf, Optional<?>>> directive : RESTART_DIRECTIVES.entrySet()) {
+            if (!directive.getValue().apply(current.getHttpdConf()).equals(directive.getValue().apply(httpdConf))) {
+                System.out.printf("Warning: ConfigResource: %s takes effect after a restart%n", directive.getKey());
+            }
+        }
+        System.out.printf("Configuration reloaded (version %d)%n", next.getVersion());
+        return true;
+    }
 }
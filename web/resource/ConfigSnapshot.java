@@ -0,0 +1,44 @@
+package web.resource;
+
+import web.server.configuration.HttpdConf;
+import web.server.configuration.MimeTypes;
+
+/**
+ * One loaded version of httpd.conf and mime.types together with the route table built from them.
+ * <p>
+ * A request takes the current snapshot once and uses it until it is answered, so a reload never
+ * mixes two configurations within one request.
+ */
+public final class ConfigSnapshot {
+
+    private final long version;
+    private final HttpdConf httpdConf;
+    private final MimeTypes mimeTypes;
+    private final RouteTable routeTable;
+
+    ConfigSnapshot(long version, HttpdConf httpdConf, MimeTypes mimeTypes, RouteTable routeTable) {
+        this.version = version;
+        this.httpdConf = httpdConf;
+        this.mimeTypes = mimeTypes;
+        this.routeTable = routeTable;
+    }
+
+    /**
+     * @return number of the snapshot, the configuration read at startup is version 1
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    public HttpdConf getHttpdConf() {
+        return this.httpdConf;
+    }
+
+    public MimeTypes getMimeTypes() {
+        return this.mimeTypes;
+    }
+
+    public RouteTable getRouteTable() {
+        return this.routeTable;
+    }
+}
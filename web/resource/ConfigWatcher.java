@@ -0,0 +1,122 @@
+package web.resource;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Triggers {@link ConfigResource#reload()} when httpd.conf or mime.types change on disk or the process
+ * receives SIGHUP.
+ * <p>
+ * Signals are only reachable through the internal sun.misc.Signal API, it is used by reflection so the
+ * build does not depend on it. Where it is missing, reload through the watched files or ReloadPath.
+ * <p>
+ * Editors often save a file in several steps (truncate, write, rename), so after the first event the
+ * watcher waits until the directory has been quiet for SETTLE_MILLIS and reloads once.
+ */
+public final class ConfigWatcher {
+
+    private static final long SETTLE_MILLIS = 250;
+
+    private ConfigWatcher() {}
+
+    /**
+     * Starts watching the configuration directory on a daemon thread and installs the SIGHUP handler
+     */
+    public static void start() {
+        Path httpdConf = Paths.get(ConfigResource.HTTPD_CONF).toAbsolutePath().normalize();
+        Path mimeTypes = Paths.get(ConfigResource.MIME_TYPES).toAbsolutePath().normalize();
+        Set<Path> files = Set.of(httpdConf, mimeTypes);
+        try {
+            WatchService watchService = FileSystems.getDefault().newWatchService();
+            for (Path directory : new HashSet<>(List.of(httpdConf.getParent(), mimeTypes.getParent()))) {
+                directory.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            Thread watcher = new Thread(() -> watchLoop(watchService, files), "config-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.printf("Warning: ConfigWatcher: Configuration files are not watched: %s%n", e.getMessage());
+        }
+
+        try {
+            handleSignal("HUP", ConfigResource::reload);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the platform has no SIGHUP, the JVM reserves it or sun.misc.Signal is not available
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+            System.out.printf("Warning: ConfigWatcher: SIGHUP reload is not available: %s%n", cause);
+        }
+    }
+
+    /**
+     * Equivalent of sun.misc.Signal.handle(new Signal(name), signal -> action.run())
+     */
+    private static void handleSignal(String name, Runnable action) throws ReflectiveOperationException {
+        Class<?> signalClass = Class.forName("sun.misc.Signal");
+        Class<?> handlerClass = Class.forName("sun.misc.SignalHandler");
+        Constructor<?> constructor = signalClass.getConstructor(String.class);
+        InvocationHandler invocationHandler = (proxy, method, arguments) -> {
+            if (method.getName().equals("handle")) {
+                action.run();
+                return null;
+            }
+            // Object methods of the proxy
+            return switch (method.getName()) {
+                case "hashCode" -> System.identityHashCode(proxy);
+                case "equals" -> proxy == arguments[0];
+                default -> "SignalHandler[" + name + "]";
+            };
+        };
+        Object handler = Proxy.newProxyInstance(handlerClass.getClassLoader(), new Class<?>[]{handlerClass}, invocationHandler);
+        signalClass.getMethod("handle", signalClass, handlerClass).invoke(null, constructor.newInstance(name), handler);
+    }
+
+    private static void watchLoop(WatchService watchService, Set<Path> files) {
+        while (true) {
+            try {
+                boolean changed = poll(watchService.take(), files);
+                if (!changed) {
+                    continue;
+                }
+                WatchKey watchKey;
+                while ((watchKey = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    poll(watchKey, files);
+                }
+                ConfigResource.reload();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return TRUE if one of the events concerns a configuration file, or events were lost
+     */
+    private static boolean poll(WatchKey watchKey, Set<Path> files) {
+        Path directory = (Path) watchKey.watchable();
+        boolean changed = false;
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || files.contains(directory.resolve((Path) event.context()));
+        }
+        watchKey.reset();
+        return changed;
+    }
+}
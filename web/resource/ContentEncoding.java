@@ -0,0 +1,88 @@
+package web.resource;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Content codings the server can send, in order of preference.
+ * br is only served from pre-compressed sibling files, gzip and deflate can also be produced on the fly.
+ */
+public enum ContentEncoding {
+    BR("br", ".br", false),
+    GZIP("gzip", ".gz", true),
+    DEFLATE("deflate", null, true);
+
+    private final String token;
+    private final String siblingSuffix;
+    private final boolean compressible;
+
+    ContentEncoding(String token, String siblingSuffix, boolean compressible) {
+        this.token = token;
+        this.siblingSuffix = siblingSuffix;
+        this.compressible = compressible;
+    }
+
+    /**
+     * @return Content-Encoding value
+     */
+    public String getToken() {
+        return this.token;
+    }
+
+    /**
+     * @return suffix of a pre-compressed sibling file, e.g. <code>.gz</code>, or null if siblings are not looked for
+     */
+    public String getSiblingSuffix() {
+        return this.siblingSuffix;
+    }
+
+    /**
+     * @return TRUE if the server can compress with this coding itself
+     */
+    public boolean isCompressible() {
+        return this.compressible;
+    }
+
+    /**
+     * Parses an Accept-Encoding value such as <code>gzip;q=0.8, br</code>
+     * @param value Accept-Encoding header value
+     * @return the codings the client accepts, highest quality first and by server preference for equal quality
+     */
+    public static List<ContentEncoding> acceptable(String value) {
+        Map<String, Double> qualities = new HashMap<>();
+        for (String element : value.split(",")) {
+            String[] parameters = element.split(";");
+            String coding = parameters[0].trim().toLowerCase(Locale.ROOT);
+            if (coding.isEmpty()) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            qualities.put(coding, quality);
+        }
+
+        List<ContentEncoding> acceptable = new ArrayList<>();
+        for (ContentEncoding encoding : values()) {
+            double quality = qualities.getOrDefault(encoding.token, qualities.getOrDefault("*", 0.0));
+            if (quality > 0) {
+                acceptable.add(encoding);
+            }
+        }
+        // stable sort keeps the server preference for equal qualities
+        acceptable.sort(Comparator.comparingDouble(encoding -> -qualities.getOrDefault(encoding.token, qualities.getOrDefault("*", 0.0))));
+        return acceptable;
+    }
+}
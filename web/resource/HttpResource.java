@@ -1,93 +1,95 @@
 package web.resource;
 
 import web.request.HttpRequest;
+import web.server.configuration.MimeTypes;
 
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.ZoneId;
-import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.util.Locale;
-import java.util.Map;
 
 public class HttpResource {
-    private static final String DEFAULT_DIRECTORY_INDEX = "index.html";
+    private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH).withZone(ZoneId.of("GMT"));
     private Path requestPath;
     private final HttpRequest request;
     private boolean isScriptAliased;
+    private String scriptAlias;
+    private RouteTable.Route route;
 
 
-    public HttpResource(HttpRequest request) {
+    public HttpResource(HttpRequest request, RouteTable routeTable) {
         this.request = request;
-        this.findPath();
+        this.findPath(routeTable);
     }
 
-    private void findPath() {
+    private void findPath(RouteTable routeTable) {
         // Resolve request URI to an absolute path
-        String requestUri = request.getID();
-        this.isScriptAliased = false;
-        if (ConfigResource.getHttpdConf().getScriptAliases().isPresent()) {
-            for (Map.Entry<String, String> scriptAlias : ConfigResource.getHttpdConf().getScriptAliases().get().entrySet()) {
-                if (requestUri.contains(scriptAlias.getKey())) {
-                    this.isScriptAliased = true;
-                    requestUri = requestUri.replace(scriptAlias.getKey(), scriptAlias.getValue());
-                    break;
-                }
-            }
-        }
-        if (this.isScriptAliased) {
-            requestPath = Paths.get(requestUri);
-        } else {
-            requestPath = Paths.get(ConfigResource.getHttpdConf().getDocumentRoot().orElseThrow(), requestUri);
-        }
-        if (Files.isDirectory(requestPath)) {
-            requestPath = Paths.get(requestPath.toString(), ConfigResource.getHttpdConf().getDirectoryIndex().orElse(DEFAULT_DIRECTORY_INDEX));
+        RouteTable.Route route = routeTable.resolve(request.getID());
+        if (route == null) {
+            return;
         }
+        this.route = route;
+        this.requestPath = route.getPath();
+        this.scriptAlias = route.getScriptAlias();
+        this.isScriptAliased = this.scriptAlias != null;
     }
     
     /**
      * Gets the the configured path for whichever file system is present on running machine
-     * @return configured Path to http resource file location
+     * @return configured Path to http resource file location, null if the request URI escapes its root
      */
     public Path getPath() {
         return requestPath;
     }
 
     /**
-     * Compares the supplied date time with the cached file date time
-     *
-     * @param unformattedDate
-     * @return boolean TRUE if the supplied date time is before the file date time and FALSE if it is after or if it failed to match
+     * @param mimeTypes table of the configuration serving the request
+     * @return content type of the resolved file, memoized with its route so repeated requests do no lookup
      */
-    public boolean compareDateTime(String unformattedDate) {
-
-        DateTimeFormatter  formatter = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH).withZone(ZoneId.of("GMT"));
+    public MimeTypes.ContentType getContentType(MimeTypes mimeTypes) {
+        return this.route.getContentType(mimeTypes);
+    }
 
+    /**
+     * Evaluates an If-Modified-Since or If-Unmodified-Since date against a modification time
+     *
+     * @param unformattedDate http date sent by the client
+     * @param modifiedMillis modification time of the file
+     * @return boolean TRUE if the file was modified after the supplied date time or if the date failed to parse
+     */
+    public static boolean isModifiedSince(String unformattedDate, long modifiedMillis) {
         try {
-            ZonedDateTime dateToCompare = ZonedDateTime.parse(unformattedDate, formatter);
-
-            ZonedDateTime fileDateTime = Instant.ofEpochMilli(requestPath.toFile().lastModified()).atZone(ZoneId.of(ZonedDateTime.now().getOffset().toString()));
-
-            System.out.println(dateToCompare + "\n" + fileDateTime);
-
-            return dateToCompare.isAfter(fileDateTime);
-
+            Instant date = Instant.from(HTTP_DATE_FORMATTER.parse(unformattedDate));
+            // http dates have a resolution of one second
+            return modifiedMillis / 1000 > date.getEpochSecond();
         } catch (DateTimeParseException e) {
-            System.out.println("Illegal Date Format");
-            e.printStackTrace();
-            return false;
+            return true;
         }
     }
 
     public String getFileDateTimeToString() {
-        //this is monstrous but it works
-        return DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH).withZone(ZoneId.of("GMT")).format(Instant.ofEpochMilli(requestPath.toFile().lastModified()).atZone(ZoneId.of(ZonedDateTime.now().getOffset().toString())));
+        return formatHttpDate(requestPath.toFile().lastModified());
+    }
+
+    /**
+     * Formats a point in time as an http date, e.g. <code>Sun, 06 Nov 1994 08:49:37 GMT</code>
+     * @param epochMillis milliseconds since the epoch
+     * @return http date string
+     */
+    public static String formatHttpDate(long epochMillis) {
+        return HTTP_DATE_FORMATTER.format(Instant.ofEpochMilli(epochMillis));
     }
 
     public boolean getIsScriptAliased() {
         return this.isScriptAliased;
     }
+
+    /**
+     * @return the ScriptAlias the request URI was resolved through, null if it is not script aliased
+     */
+    public String getScriptAlias() {
+        return this.scriptAlias;
+    }
 }
@@ -0,0 +1,271 @@
+package web.resource;
+
+import web.server.configuration.HttpdConf;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Shared read-only memory mappings of large static files, keyed by resolved path.
+ * <p>
+ * Files of at least MmapMinFileSize bytes are mapped once and every connection sends slices of the same
+ * mapping, so full and range responses are written from the page cache without reading the file onto
+ * the heap. The tier is off unless MmapMinFileSize is set. Mappings are validated against the file's
+ * modification time and size on every lookup, and the bytes mapped at once are capped by MmapMaxBytes:
+ * least recently used mappings are evicted to make room, a file that still does not fit is not mapped.
+ * <p>
+ * A mapping is reference counted, the cache holds one reference and every request using it another.
+ * It is unmapped explicitly when the last reference is released, so an evicted or stale mapping stays
+ * valid until the responses sending it are written. Without an explicit unmap it would stay mapped
+ * until the garbage collector found its buffer unreachable.
+ */
+public final class MappedFileCache {
+
+    private static final long DEFAULT_MAX_BYTES = 1024L * 1024 * 1024;
+
+    private static final MappedFileCache INSTANCE = new MappedFileCache(ConfigResource.getHttpdConf());
+    private static final Unmapper UNMAPPER = Unmapper.create();
+
+    /**
+     * A mapped file, to be released once the response sending it is written
+     */
+    public static final class Mapping {
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer content;
+        private final long length;
+        private final long modifiedMillis;
+        // one reference held by the cache while the mapping is in it, one per request using it
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final MappedFileCache cache;
+
+        private Mapping(MappedByteBuffer buffer, long modifiedMillis, MappedFileCache cache) {
+            this.buffer = buffer;
+            this.content = buffer.asReadOnlyBuffer();
+            this.length = buffer.capacity();
+            this.modifiedMillis = modifiedMillis;
+            this.cache = cache;
+        }
+
+        /**
+         * @return TRUE if a reference was taken, FALSE if the mapping was already released for good
+         */
+        private boolean retain() {
+            int count;
+            do {
+                count = this.references.get();
+                if (count == 0) {
+                    return false;
+                }
+            } while (!this.references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        /**
+         * Gives up a reference, the file is unmapped when the last one is gone
+         */
+        public void release() {
+            if (this.references.decrementAndGet() == 0) {
+                this.cache.unmap(this);
+            }
+        }
+
+        /**
+         * @return an independent read-only view of the file contents, only valid until {@link #release()}
+         */
+        public ByteBuffer getContent() {
+            return this.content.duplicate();
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+
+        public long getModifiedMillis() {
+            return this.modifiedMillis;
+        }
+    }
+
+    private final long minFileSize;
+    private final long maxBytes;
+    // access ordered so iteration starts at the least recently used mapping
+    private final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    // bytes mapped, including mappings evicted from the cache but still being sent
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    private MappedFileCache(HttpdConf httpdConf) {
+        this.minFileSize = httpdConf.getMmapMinFileSize().orElse(Long.MAX_VALUE);
+        this.maxBytes = httpdConf.getMmapMaxBytes().orElse(DEFAULT_MAX_BYTES);
+    }
+
+    public static MappedFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the mapping of a file with a reference taken for the caller, mapping it on a miss
+     * @param path resolved path of the file
+     * @return the mapping, to be released by the caller, or null if the file is not mapped
+     * @throws IOException if the file cannot be read
+     */
+    public Mapping acquire(Path path) throws IOException {
+        if (this.minFileSize == Long.MAX_VALUE) {
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long modifiedMillis = attributes.lastModifiedTime().toMillis();
+        // a single mapping is limited to Integer.MAX_VALUE bytes
+        if (!attributes.isRegularFile() || attributes.size() < this.minFileSize || attributes.size() > Math.min(this.maxBytes, Integer.MAX_VALUE)) {
+            return null;
+        }
+        synchronized (this) {
+            Mapping mapping = this.mappings.get(path);
+            if (mapping != null && mapping.modifiedMillis == modifiedMillis && mapping.length == attributes.size() && mapping.retain()) {
+                this.hitCount.increment();
+                return mapping;
+            }
+            if (mapping != null) {
+                // the file changed, requests still sending the old contents keep it mapped until they are done
+                this.mappings.remove(path);
+                mapping.release();
+            }
+            this.missCount.increment();
+            if (!this.reserve(attributes.size())) {
+                return null;
+            }
+        }
+
+        Mapping mapping;
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            mapping = new Mapping(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size()), modifiedMillis, this);
+        } catch (IOException | RuntimeException e) {
+            this.mappedBytes.addAndGet(-attributes.size());
+            throw e;
+        }
+        mapping.retain();
+        synchronized (this) {
+            Mapping previous = this.mappings.put(path, mapping);
+            if (previous != null) {
+                previous.release();
+            }
+        }
+        return mapping;
+    }
+
+    /**
+     * Counts a new mapping against MmapMaxBytes, evicting least recently used mappings until it fits
+     * @return FALSE if the mappings still being sent leave no room for it
+     */
+    private boolean reserve(long size) {
+        Iterator<Mapping> iterator = this.mappings.values().iterator();
+        while (true) {
+            long mapped = this.mappedBytes.get();
+            if (mapped + size <= this.maxBytes) {
+                if (this.mappedBytes.compareAndSet(mapped, mapped + size)) {
+                    return true;
+                }
+                continue;
+            }
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            // bytes are only given back once the responses using the mapping are written
+            Mapping eldest = iterator.next();
+            iterator.remove();
+            eldest.release();
+            this.evictionCount.increment();
+        }
+    }
+
+    private void unmap(Mapping mapping) {
+        this.mappedBytes.addAndGet(-mapping.length);
+        UNMAPPER.unmap(mapping.buffer);
+    }
+
+    /**
+     * Drops the mappings of all files matching the filter, e.g. files a configuration reload no longer serves
+     * @param filter selects the paths to drop
+     */
+    public synchronized void invalidateIf(Predicate<Path> filter) {
+        Iterator<Map.Entry<Path, Mapping>> iterator = this.mappings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Mapping> entry = iterator.next();
+            if (filter.test(entry.getKey())) {
+                iterator.remove();
+                entry.getValue().release();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
+    public long getMappedBytes() {
+        return this.mappedBytes.get();
+    }
+
+    /**
+     * Releases mappings through sun.misc.Unsafe#invokeCleaner, the only way to unmap a buffer before it is
+     * garbage collected. The internal class is only reached by reflection, so the build does not depend on
+     * it: where it is missing or not accessible mappings are left to the garbage collector.
+     */
+    private static final class Unmapper {
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(Object unsafe, Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        private static Unmapper create() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Unmapper(field.get(null), unsafeClass.getMethod("invokeCleaner", ByteBuffer.class));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.out.printf("Warning: MappedFileCache: Mappings are unmapped by the garbage collector: %s%n", e);
+                return new Unmapper(null, null);
+            }
+        }
+
+        private void unmap(MappedByteBuffer buffer) {
+            if (this.unsafe == null) {
+                return;
+            }
+            try {
+                this.invokeCleaner.invoke(this.unsafe, buffer);
+            } catch (ReflectiveOperationException e) {
+                // the buffer stays mapped until it is garbage collected
+                System.out.printf("Warning: MappedFileCache: Could not unmap a file: %s%n", e.getCause());
+            }
+        }
+    }
+}
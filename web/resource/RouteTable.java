@@ -0,0 +1,195 @@
+package web.resource;
+
+import web.server.configuration.HttpdConf;
+import web.server.configuration.MimeTypes;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps request URIs to files, built once from the ScriptAlias, DocumentRoot and DirectoryIndex directives.
+ * <p>
+ * ScriptAlias prefixes are kept in a character trie and matched against the start of the URI, the
+ * longest alias wins and an alias only matches whole path segments. URIs are normalized first, one
+ * that climbs out of its root with ".." segments has no route. Resolved routes, including whether the
+ * target is a directory served through its index file, are cached per URI and looked at again after
+ * RECHECK_INTERVAL_MILLIS. A table belongs to one {@link ConfigSnapshot}, a reload that changes routing
+ * builds a new one and the cached routes go with the old.
+ */
+public final class RouteTable {
+
+    private static final String DEFAULT_DIRECTORY_INDEX = "index.html";
+    private static final long RECHECK_INTERVAL_MILLIS = 1000;
+    // the cache is simply dropped when it grows past this, routes are cheap to rebuild
+    private static final int MAX_ENTRIES = 16 * 1024;
+
+    /**
+     * Target of a request URI
+     */
+    public static final class Route {
+        private final Path path;
+        private final String scriptAlias;
+        private final long checkedMillis;
+        // content type resolved by the MimeTypes of the snapshot that last asked, a table outlives reloads that keep routing
+        private volatile ResolvedContentType contentType;
+
+        private Route(Path path, String scriptAlias, long checkedMillis) {
+            this.path = path;
+            this.scriptAlias = scriptAlias;
+            this.checkedMillis = checkedMillis;
+        }
+
+        /**
+         * @return the file, the directory index file if the URI names a directory
+         */
+        public Path getPath() {
+            return this.path;
+        }
+
+        /**
+         * @return the ScriptAlias the URI matched, null for a file below the document root
+         */
+        public String getScriptAlias() {
+            return this.scriptAlias;
+        }
+
+        /**
+         * @param mimeTypes table of the configuration serving the request
+         * @return content type of the file, resolved once per route and MIME table
+         */
+        public MimeTypes.ContentType getContentType(MimeTypes mimeTypes) {
+            ResolvedContentType resolved = this.contentType;
+            if (resolved == null || resolved.mimeTypes != mimeTypes) {
+                Path fileName = this.path.getFileName();
+                resolved = new ResolvedContentType(mimeTypes, mimeTypes.getContentType(fileName == null ? "" : fileName.toString()));
+                this.contentType = resolved;
+            }
+            return resolved.contentType;
+        }
+    }
+
+    private static final class ResolvedContentType {
+        private final MimeTypes mimeTypes;
+        private final MimeTypes.ContentType contentType;
+
+        private ResolvedContentType(MimeTypes mimeTypes, MimeTypes.ContentType contentType) {
+            this.mimeTypes = mimeTypes;
+            this.contentType = contentType;
+        }
+    }
+
+    private static final class Node {
+        private final Map<Character, Node> children = new HashMap<>();
+        // alias ending at this node, null if none does
+        private String alias;
+        private Path target;
+    }
+
+    private final Node aliases = new Node();
+    private final Map<String, String> scriptAliases;
+    private final Path documentRoot;
+    private final String directoryIndex;
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    RouteTable(HttpdConf httpdConf) {
+        this.scriptAliases = Map.copyOf(httpdConf.getScriptAliases().orElse(Map.of()));
+        for (Map.Entry<String, String> scriptAlias : this.scriptAliases.entrySet()) {
+            Node node = this.aliases;
+            for (char c : scriptAlias.getKey().toCharArray()) {
+                node = node.children.computeIfAbsent(c, key -> new Node());
+            }
+            node.alias = scriptAlias.getKey();
+            node.target = Paths.get(scriptAlias.getValue()).normalize();
+        }
+        this.documentRoot = Paths.get(httpdConf.getDocumentRoot().orElseThrow()).normalize();
+        this.directoryIndex = httpdConf.getDirectoryIndex().orElse(DEFAULT_DIRECTORY_INDEX);
+    }
+
+    /**
+     * @param other configuration of a reload
+     * @return TRUE if a table built from other would route every URI the same way as this one
+     */
+    boolean routesLike(HttpdConf other) {
+        return this.scriptAliases.equals(other.getScriptAliases().orElse(Map.of()))
+                && this.documentRoot.equals(Paths.get(other.getDocumentRoot().orElseThrow()).normalize())
+                && this.directoryIndex.equals(other.getDirectoryIndex().orElse(DEFAULT_DIRECTORY_INDEX));
+    }
+
+    /**
+     * @param path a file
+     * @return TRUE if the file lies below the document root or a ScriptAlias directory
+     */
+    boolean serves(Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        if (normalized.startsWith(this.documentRoot.toAbsolutePath())) {
+            return true;
+        }
+        for (String target : this.scriptAliases.values()) {
+            if (normalized.startsWith(Paths.get(target).toAbsolutePath().normalize())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param requestUri request URI without the query string
+     * @return the route, null if the URI does not resolve to a path below its root
+     */
+    public Route resolve(String requestUri) {
+        long now = System.currentTimeMillis();
+        Route route = this.routes.get(requestUri);
+        if (route != null && now - route.checkedMillis < RECHECK_INTERVAL_MILLIS) {
+            return route;
+        }
+        route = this.route(requestUri, now);
+        if (route != null) {
+            if (this.routes.size() >= MAX_ENTRIES) {
+                this.routes.clear();
+            }
+            this.routes.put(requestUri, route);
+        }
+        return route;
+    }
+
+    private Route route(String requestUri, long now) {
+        Node alias = this.matchAlias(requestUri);
+        Path root = alias == null ? this.documentRoot : alias.target;
+        String relative = alias == null ? requestUri : requestUri.substring(alias.alias.length());
+        // leading slashes would make the URI absolute and replace the root
+        int start = 0;
+        while (start < relative.length() && relative.charAt(start) == '/') {
+            start++;
+        }
+        Path path = root.resolve(relative.substring(start)).normalize();
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        if (Files.isDirectory(path)) {
+            path = path.resolve(this.directoryIndex);
+        }
+        return new Route(path, alias == null ? null : alias.alias, now);
+    }
+
+    /**
+     * @return node of the longest alias that is a prefix of the URI ending at a segment boundary, null if there is none
+     */
+    private Node matchAlias(String requestUri) {
+        Node node = this.aliases;
+        Node match = null;
+        for (int i = 0; i < requestUri.length(); i++) {
+            node = node.children.get(requestUri.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.alias != null && (requestUri.charAt(i) == '/' || i + 1 == requestUri.length() || requestUri.charAt(i + 1) == '/')) {
+                match = node;
+            }
+        }
+        return match;
+    }
+}
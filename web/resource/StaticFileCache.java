@@ -0,0 +1,175 @@
+package web.resource;
+
+import web.server.configuration.HttpdConf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Shared in-memory cache of small static files, keyed by resolved path.
+ * <p>
+ * File contents are kept in read-only direct buffers together with everything needed to answer a GET
+ * (Last-Modified value and length), the content type is resolved once per route by
+ * {@link RouteTable.Route#getContentType}. The cache is bounded by CacheMaxBytes and evicts the
+ * least recently used entries, files larger than CacheMaxFileSize are never cached. Entries are
+ * validated against the file's modification time and size on every lookup.
+ */
+public final class StaticFileCache {
+
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_MAX_FILE_SIZE = 1024 * 1024;
+
+    private static final StaticFileCache INSTANCE = new StaticFileCache(ConfigResource.getHttpdConf());
+
+    public static final class Entry {
+        private final ByteBuffer content;
+        private final String lastModified;
+        private final long length;
+        private final long modifiedMillis;
+
+        private Entry(ByteBuffer content, long modifiedMillis) {
+            this.content = content;
+            this.lastModified = HttpResource.formatHttpDate(modifiedMillis);
+            this.length = content.remaining();
+            this.modifiedMillis = modifiedMillis;
+        }
+
+        /**
+         * @return an independent read-only view of the file contents, safe to consume from any thread
+         */
+        public ByteBuffer getContent() {
+            return this.content.duplicate();
+        }
+
+        public String getLastModified() {
+            return this.lastModified;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+
+        public long getModifiedMillis() {
+            return this.modifiedMillis;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxFileSize;
+    // access ordered so iteration starts at the least recently used entry
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long currentBytes;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    private StaticFileCache(HttpdConf httpdConf) {
+        this.maxBytes = httpdConf.getCacheMaxBytes().orElse(DEFAULT_MAX_BYTES);
+        this.maxFileSize = Math.min(this.maxBytes, httpdConf.getCacheMaxFileSize().orElse(DEFAULT_MAX_FILE_SIZE));
+    }
+
+    public static StaticFileCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cached file, loading it on a miss if it is small enough to be cached
+     * @param path resolved path of the file
+     * @return the cache entry or null if the file is not cacheable
+     * @throws IOException if the file cannot be read
+     */
+    public Entry get(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long modifiedMillis = attributes.lastModifiedTime().toMillis();
+        synchronized (this) {
+            Entry entry = this.entries.get(path);
+            if (entry != null && entry.modifiedMillis == modifiedMillis && entry.length == attributes.size()) {
+                this.hitCount.increment();
+                return entry;
+            }
+            if (entry != null) {
+                this.remove(path);
+            }
+        }
+        this.missCount.increment();
+        if (!attributes.isRegularFile() || attributes.size() > this.maxFileSize) {
+            return null;
+        }
+
+        Entry entry = new Entry(this.load(path, attributes.size()), modifiedMillis);
+        synchronized (this) {
+            Entry previous = this.entries.put(path, entry);
+            if (previous != null) {
+                this.currentBytes -= previous.length;
+            }
+            this.currentBytes += entry.length;
+            Iterator<Map.Entry<Path, Entry>> iterator = this.entries.entrySet().iterator();
+            while (this.currentBytes > this.maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next().getValue();
+                iterator.remove();
+                this.currentBytes -= eldest.length;
+                this.evictionCount.increment();
+            }
+        }
+        return entry;
+    }
+
+    private ByteBuffer load(Path path, long size) throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (content.hasRemaining() && fileChannel.read(content) != -1) {
+                // keep reading until the buffer is full
+            }
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops the entries of all files matching the filter, e.g. files a configuration reload no longer serves
+     * @param filter selects the paths to drop
+     */
+    public synchronized void invalidateIf(Predicate<Path> filter) {
+        Iterator<Map.Entry<Path, Entry>> iterator = this.entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Path, Entry> entry = iterator.next();
+            if (filter.test(entry.getKey())) {
+                iterator.remove();
+                this.currentBytes -= entry.getValue().length;
+            }
+        }
+    }
+
+    private void remove(Path path) {
+        Entry removed = this.entries.remove(path);
+        if (removed != null) {
+            this.currentBytes -= removed.length;
+        }
+    }
+
+    public long getHitCount() {
+        return this.hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return this.missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return this.evictionCount.sum();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return this.currentBytes;
+    }
+}
@@ -0,0 +1,131 @@
+package web.resource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared index of the validators (ETag and Last-Modified) of static files, keyed by resolved path.
+ * <p>
+ * The strong ETag is derived from size and modification time. An entry is trusted for
+ * REVALIDATE_INTERVAL_MILLIS before the file is looked at again, so answering a burst of conditional
+ * requests for the same file costs a map lookup. Missing files are indexed as well, so probing for
+ * optional files (such as pre-compressed siblings) is just as cheap. Writes made through the server invalidate entries
+ * right away, changes made behind its back are picked up within the interval.
+ */
+public final class ValidatorIndex {
+
+    private static final long REVALIDATE_INTERVAL_MILLIS = 1000;
+    // the index is simply dropped when it grows past this, entries are cheap to rebuild
+    private static final int MAX_ENTRIES = 64 * 1024;
+
+    private static final ValidatorIndex INSTANCE = new ValidatorIndex();
+
+    public static final class Validators {
+        private final boolean exists;
+        private final String entityTag;
+        private final String lastModified;
+        private final long modifiedMillis;
+        private final long length;
+        private final long checkedMillis;
+
+        private Validators(long checkedMillis) {
+            this.exists = false;
+            this.entityTag = null;
+            this.lastModified = null;
+            this.modifiedMillis = 0;
+            this.length = 0;
+            this.checkedMillis = checkedMillis;
+        }
+
+        private Validators(long length, long modifiedMillis, long checkedMillis) {
+            this.exists = true;
+            this.entityTag = String.format("\"%x-%x\"", length, modifiedMillis);
+            this.lastModified = HttpResource.formatHttpDate(modifiedMillis);
+            this.modifiedMillis = modifiedMillis;
+            this.length = length;
+            this.checkedMillis = checkedMillis;
+        }
+
+        /**
+         * @return strong entity tag including the quotes
+         */
+        public String getEntityTag() {
+            return this.entityTag;
+        }
+
+        public String getLastModified() {
+            return this.lastModified;
+        }
+
+        public long getModifiedMillis() {
+            return this.modifiedMillis;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+    }
+
+    private final Map<Path, Validators> entries = new ConcurrentHashMap<>();
+
+    private ValidatorIndex() {}
+
+    public static ValidatorIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param path resolved path of the file
+     * @return the file's validators or null if it is not a regular file
+     * @throws IOException if the file attributes cannot be read
+     */
+    public Validators get(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        Validators validators = this.entries.get(path);
+        if (validators == null || now - validators.checkedMillis >= REVALIDATE_INTERVAL_MILLIS) {
+            validators = this.read(path, now);
+            if (this.entries.size() >= MAX_ENTRIES) {
+                this.entries.clear();
+            }
+            this.entries.put(path, validators);
+        }
+        return validators.exists ? validators : null;
+    }
+
+    private Validators read(Path path, long now) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return new Validators(now);
+        }
+        if (!attributes.isRegularFile()) {
+            return new Validators(now);
+        }
+        return new Validators(attributes.size(), attributes.lastModifiedTime().toMillis(), now);
+    }
+
+    /**
+     * Reads the file's validators again regardless of the interval, used before changing the file
+     * @param path resolved path of the file
+     * @return the file's current validators or null if it is not a regular file
+     * @throws IOException if the file attributes cannot be read
+     */
+    public Validators revalidate(Path path) throws IOException {
+        this.entries.remove(path);
+        return this.get(path);
+    }
+
+    /**
+     * Forgets a file after the server changed or deleted it
+     * @param path resolved path of the file
+     */
+    public void invalidate(Path path) {
+        this.entries.remove(path);
+    }
+}
@@ -0,0 +1,83 @@
+package web.response;
+
+import web.request.ByteRange;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * multipart/byteranges body of a 206 response to a request for several ranges.
+ * Part heads are encoded up front so the Content-Length is known, the ranges themselves are written by
+ * the caller from the file (or its cached contents) between them.
+ */
+public class ByteRangesBody {
+    private final String boundary;
+    private final List<ByteRange> ranges;
+    private final List<byte[]> partHeads;
+    private final byte[] closingDelimiter;
+    private final long length;
+    private final Path path;
+    private final ByteBuffer content;
+
+    /**
+     * @param ranges satisfiable ranges, in the order they are sent
+     * @param contentType type of the representation, repeated in every part
+     * @param completeLength length of the representation
+     * @param path file the ranges are read from
+     * @param content cached file contents, null if the ranges are read from disk
+     */
+    public ByteRangesBody(List<ByteRange> ranges, String contentType, long completeLength, Path path, ByteBuffer content) {
+        this.boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        this.ranges = List.copyOf(ranges);
+        this.partHeads = new ArrayList<>(ranges.size());
+        long bodyLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHead = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+                    this.boundary, contentType, range.toContentRange(completeLength)).getBytes(StandardCharsets.ISO_8859_1);
+            this.partHeads.add(partHead);
+            bodyLength += partHead.length + range.getLength();
+        }
+        this.closingDelimiter = String.format("\r\n--%s--\r\n", this.boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.length = bodyLength + this.closingDelimiter.length;
+        this.path = path;
+        this.content = content;
+    }
+
+    public String getContentType() {
+        return "multipart/byteranges; boundary=" + this.boundary;
+    }
+
+    public List<ByteRange> getRanges() {
+        return this.ranges;
+    }
+
+    public byte[] getPartHead(int index) {
+        return this.partHeads.get(index);
+    }
+
+    public byte[] getClosingDelimiter() {
+        return this.closingDelimiter;
+    }
+
+    /**
+     * @return total body length including part heads and the closing delimiter
+     */
+    public long getLength() {
+        return this.length;
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    /**
+     * @return cached file contents or null if the ranges have to be read from disk
+     */
+    public ByteBuffer getContent() {
+        return this.content;
+    }
+}
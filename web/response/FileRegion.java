@@ -0,0 +1,35 @@
+package web.response;
+
+import java.nio.file.Path;
+
+/**
+ * A slice of a file used as a response body, written straight from disk to the socket
+ */
+public class FileRegion {
+    private final Path path;
+    private final long position;
+    private final long count;
+
+    /**
+     * @param path file to send
+     * @param position offset of the first byte to send
+     * @param count number of bytes to send
+     */
+    public FileRegion(Path path, long position, long count) {
+        this.path = path;
+        this.position = position;
+        this.count = count;
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    public long getPosition() {
+        return this.position;
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+}
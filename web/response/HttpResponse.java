@@ -1,14 +1,16 @@
 package web.response;
 
+import web.resource.HttpResource;
+import web.server.configuration.MimeTypes;
+
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.time.Instant;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
-import java.util.Date;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -18,29 +20,77 @@ import java.util.Map;
  * - Server
  * - Date
  * - Content-Length
+ * <p>
+ * The head is encoded into a reusable per-thread byte array from precomputed status lines and
+ * header constants, the Date value is formatted at most once per second.
  */
 public class HttpResponse {
-    private static final Map<Integer, String> REASON_PHRASES = Map.of(
-            200, "OK",
-            201, "Created",
-            204, "No Content",
-            304, "Not Modified",
-            400, "Bad Request",
-            401, "Unauthorized",
-            403, "Forbidden",
-            404, "Not Found",
-            500, "Internal Server Error"
+    private static final Map<Integer, String> REASON_PHRASES = Map.ofEntries(
+            Map.entry(200, "OK"),
+            Map.entry(201, "Created"),
+            Map.entry(204, "No Content"),
+            Map.entry(206, "Partial Content"),
+            Map.entry(301, "Moved Permanently"),
+            Map.entry(302, "Found"),
+            Map.entry(304, "Not Modified"),
+            Map.entry(400, "Bad Request"),
+            Map.entry(401, "Unauthorized"),
+            Map.entry(403, "Forbidden"),
+            Map.entry(404, "Not Found"),
+            Map.entry(405, "Method Not Allowed"),
+            Map.entry(412, "Precondition Failed"),
+            Map.entry(413, "Content Too Large"),
+            Map.entry(414, "URI Too Long"),
+            Map.entry(416, "Range Not Satisfiable"),
+            Map.entry(431, "Request Header Fields Too Large"),
+            Map.entry(500, "Internal Server Error"),
+            Map.entry(501, "Not Implemented"),
+            Map.entry(503, "Service Unavailable"),
+            Map.entry(504, "Gateway Timeout")
     );
+    private static final String DEFAULT_HTTP_VERSION = "HTTP/1.1";
+    private static final Map<Integer, byte[]> STATUS_LINES = precomputeStatusLines();
+    private static final byte[] SERVER_HEADER = "Server: Chan Rennacker\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTENT_LENGTH_HEADER = "Content-Length: ".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CHUNKED_HEADER = "Transfer-Encoding: chunked\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int INITIAL_HEAD_BUFFER_SIZE = 4096;
+    // a head buffer grown past this size is not kept for the next response
+    private static final int MAX_RETAINED_HEAD_BUFFER_SIZE = 64 * 1024;
+    // bodies up to this size are copied behind the head so both go out in a single write
+    private static final int INLINE_BODY_LIMIT = 16 * 1024;
+    private static final ThreadLocal<byte[]> HEAD_BUFFER = ThreadLocal.withInitial(() -> new byte[INITIAL_HEAD_BUFFER_SIZE]);
+
+    private static final class DateHeader {
+        private final long second;
+        private final byte[] bytes;
+
+        private DateHeader(long second) {
+            this.second = second;
+            this.bytes = String.format("Date: %s\r\n", HttpResource.formatHttpDate(second * 1000)).getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static volatile DateHeader dateHeader = new DateHeader(System.currentTimeMillis() / 1000);
 
     private String httpVersion;
     private Integer statusCode;
     private Map<String, String> headers;
+    // fields that may repeat, each is sent as its own line after the headers above
+    private List<Map.Entry<String, String>> appendedHeaders;
+    private MimeTypes.ContentType contentType;
     private byte[] body;
+    private FileRegion fileBody;
+    private ByteBuffer bufferBody;
+    private FileRegion bufferBodySource;
+    private ByteRangesBody rangesBody;
+    private InputStream streamedBody;
+    private boolean chunked;
 
     private boolean sendBody =  true;
 
     public HttpResponse() {
-        this.httpVersion = "HTTP/1.1";
+        this.httpVersion = DEFAULT_HTTP_VERSION;
         this.statusCode = 200;
         this.headers = new HashMap<>();
     }
@@ -69,50 +119,276 @@ public class HttpResponse {
         this.headers = headers;
     }
 
+    /**
+     * Adds a field line without replacing earlier lines of the same field, e.g. one per Set-Cookie
+     * @param key field name
+     * @param value field value
+     */
+    public void appendHeader(String key, String value) {
+        if (this.appendedHeaders == null) {
+            this.appendedHeaders = new ArrayList<>();
+        }
+        this.appendedHeaders.add(Map.entry(key, value));
+    }
+
+    /**
+     * Sets the Content-Type from a resolved type, its header line is copied in without being encoded again
+     * @param contentType type of the body
+     */
+    public void setContentType(MimeTypes.ContentType contentType) {
+        this.contentType = contentType;
+    }
+
     public void setBody(byte[] data) {
         this.body = data;
     }
 
+    /**
+     * Uses a region of a file as the body, the bytes are transferred by the caller after {@link #writeResponse}
+     * so the file never has to be read onto the heap
+     * @param fileBody file region to send
+     */
+    public void setFileBody(FileRegion fileBody) {
+        this.fileBody = fileBody;
+    }
+
+    public FileRegion getFileBody() {
+        return this.fileBody;
+    }
+
+    /**
+     * Uses the remaining bytes of a (possibly shared, direct) buffer as the body, the bytes are written
+     * by the caller after {@link #writeResponse}
+     * @param bufferBody buffer holding the body
+     */
+    public void setBufferBody(ByteBuffer bufferBody) {
+        this.setBufferBody(bufferBody, null);
+    }
+
+    /**
+     * Uses the remaining bytes of a memory mapped file as the body
+     * @param bufferBody mapped buffer holding the body
+     * @param source the file region mapped by the buffer, sent instead if reading the mapping faults
+     */
+    public void setBufferBody(ByteBuffer bufferBody, FileRegion source) {
+        this.bufferBody = bufferBody;
+        this.bufferBodySource = source;
+    }
+
+    public ByteBuffer getBufferBody() {
+        return this.bufferBody;
+    }
+
+    /**
+     * @return the file region a mapped buffer body was read from, null for other buffers
+     */
+    public FileRegion getBufferBodySource() {
+        return this.bufferBodySource;
+    }
+
+    /**
+     * Uses a multipart/byteranges body, the parts are written by the caller after {@link #encodeHead()}
+     * @param rangesBody ranges to send
+     */
+    public void setRangesBody(ByteRangesBody rangesBody) {
+        this.rangesBody = rangesBody;
+    }
+
+    public ByteRangesBody getRangesBody() {
+        return this.rangesBody;
+    }
+
+    /**
+     * Uses a body of unknown length, it is copied by the caller after {@link #encodeHead()}
+     * @param streamedBody stream to copy the body from
+     * @param chunked TRUE to frame the body with Transfer-Encoding: chunked, FALSE to end it by closing the connection
+     */
+    public void setStreamedBody(InputStream streamedBody, boolean chunked) {
+        this.streamedBody = streamedBody;
+        this.chunked = chunked;
+    }
+
+    public InputStream getStreamedBody() {
+        return this.streamedBody;
+    }
+
+    public boolean isChunked() {
+        return this.chunked;
+    }
+
     public void setSendBody(){
         sendBody = false;
     }
 
+    public boolean isSendBody() {
+        return this.sendBody;
+    }
+
     public void writeResponse(OutputStream outputStream) throws IOException {
-        // Set mandatory headers specified in project spec
-        this.headers.put("Server", "Chan Rennacker");
-        this.headers.put("Date", DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss z", Locale.ENGLISH).withZone(ZoneId.of("GMT")).format(Instant.now()));
+        ByteBuffer head = this.encodeHead();
+        outputStream.write(head.array(), head.arrayOffset(), head.remaining());
+    }
+
+    /**
+     * Encodes the status line, headers and blank line, followed by the byte[] body if there is one to send.
+     * A buffer body that is small enough is copied in as well, see {@link #isBufferBodyEncoded()}.
+     * <p>
+     * The returned buffer wraps a per-thread array and is only valid until the next response is
+     * encoded on the same thread.
+     * @return heap buffer holding the encoded bytes
+     */
+    public ByteBuffer encodeHead() {
+        HeadEncoder encoder = new HeadEncoder();
+        encoder.append(this.getStatusLineBytes());
+        encoder.append(SERVER_HEADER);
+        encoder.append(currentDateHeader());
 
         // Automatically add other headers
+        long contentLength = -1;
         if (this.body != null) {
-            this.headers.put("Content-Length", String.valueOf(this.body.length));
+            contentLength = this.body.length;
+        } else if (this.fileBody != null) {
+            contentLength = this.fileBody.getCount();
+        } else if (this.bufferBody != null) {
+            contentLength = this.bufferBody.remaining();
+        } else if (this.rangesBody != null) {
+            contentLength = this.rangesBody.getLength();
+        } else if (this.streamedBody != null) {
+            if (this.chunked) {
+                encoder.append(CHUNKED_HEADER);
+            }
+        } else if (this.statusCode != 204 && this.statusCode != 304) {
+            // bodiless responses still need framing so a persistent connection can carry on
+            contentLength = 0;
+        }
+        if (contentLength != -1) {
+            encoder.append(CONTENT_LENGTH_HEADER);
+            encoder.append(contentLength);
+            encoder.append(CRLF);
+        }
+        if (this.contentType != null) {
+            encoder.append(this.contentType.getHeaderBytes());
         }
-
-        // Write all headers
-        outputStream.write(String.format("%s\r\n", getStatusLine()).getBytes(StandardCharsets.ISO_8859_1));
         for (Map.Entry<String, String> header : this.headers.entrySet()) {
-            outputStream.write(String.format("%s: %s\r\n", header.getKey(), header.getValue()).getBytes(StandardCharsets.ISO_8859_1));
+            encoder.append(header.getKey());
+            encoder.append(": ");
+            encoder.append(header.getValue());
+            encoder.append(CRLF);
         }
-        outputStream.write("\r\n".getBytes(StandardCharsets.ISO_8859_1)); // There must be CRLF after the status line and headers.
+        if (this.appendedHeaders != null) {
+            for (Map.Entry<String, String> header : this.appendedHeaders) {
+                encoder.append(header.getKey());
+                encoder.append(": ");
+                encoder.append(header.getValue());
+                encoder.append(CRLF);
+            }
+        }
+        encoder.append(CRLF); // There must be CRLF after the status line and headers.
 
-        // Write body
-        if (this.body != null && sendBody) {
-            outputStream.write(this.body);
+        // byte[] bodies go out with the head, file and large buffer bodies are left for the caller to transfer
+        if (this.body != null && this.sendBody) {
+            encoder.append(this.body);
+        } else if (this.isBufferBodyEncoded()) {
+            encoder.append(this.bufferBody.duplicate());
         }
+        return encoder.toByteBuffer();
     }
 
+    /**
+     * @return TRUE if {@link #encodeHead()} includes the buffer body, the caller must not write it again
+     */
+    public boolean isBufferBodyEncoded() {
+        // mapped bodies are left to the caller, which handles a fault reading them
+        return this.bufferBody != null && this.bufferBodySource == null && this.sendBody && this.bufferBody.remaining() <= INLINE_BODY_LIMIT;
+    }
 
-    public void writeMinimalCgiResponse(OutputStream outputStream) throws IOException {
-        // Set minimal headers to identify server
-        this.setHeaders(Map.of("Server", "Chan Rennacker", "Date", (new Date()).toString()));
+    private static byte[] currentDateHeader() {
+        long second = System.currentTimeMillis() / 1000;
+        DateHeader cached = dateHeader;
+        if (cached.second != second) {
+            cached = new DateHeader(second);
+            dateHeader = cached;
+        }
+        return cached.bytes;
+    }
 
-        outputStream.write(String.format("%s\r\n", getStatusLine()).getBytes(StandardCharsets.ISO_8859_1));
-        for (Map.Entry<String, String> header : this.headers.entrySet()) {
-            outputStream.write(String.format("%s: %s\r\n", header.getKey(), header.getValue()).getBytes(StandardCharsets.ISO_8859_1));
+    private static Map<Integer, byte[]> precomputeStatusLines() {
+        Map<Integer, byte[]> statusLines = new HashMap<>();
+        for (Map.Entry<Integer, String> reasonPhrase : REASON_PHRASES.entrySet()) {
+            statusLines.put(reasonPhrase.getKey(), String.format("%s %d %s\r\n", DEFAULT_HTTP_VERSION, reasonPhrase.getKey(), reasonPhrase.getValue()).getBytes(StandardCharsets.ISO_8859_1));
+        }
+        return Map.copyOf(statusLines);
+    }
+
+    private byte[] getStatusLineBytes() {
+        byte[] statusLine = DEFAULT_HTTP_VERSION.equals(this.httpVersion) ? STATUS_LINES.get(this.statusCode) : null;
+        return statusLine != null ? statusLine : String.format("%s\r\n", getStatusLine()).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Appends to the calling thread's head buffer, growing it when a response does not fit
+     */
+    private static final class HeadEncoder {
+        private byte[] buffer = HEAD_BUFFER.get();
+        private int length;
+
+        private void ensureCapacity(int additional) {
+            if (this.length + additional > this.buffer.length) {
+                byte[] grown = new byte[Math.max(this.buffer.length * 2, this.length + additional)];
+                System.arraycopy(this.buffer, 0, grown, 0, this.length);
+                this.buffer = grown;
+                if (grown.length <= MAX_RETAINED_HEAD_BUFFER_SIZE) {
+                    HEAD_BUFFER.set(grown);
+                }
+            }
+        }
+
+        private void append(byte[] bytes) {
+            this.ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+            this.length += bytes.length;
+        }
+
+        private void append(ByteBuffer bytes) {
+            int remaining = bytes.remaining();
+            this.ensureCapacity(remaining);
+            bytes.get(this.buffer, this.length, remaining);
+            this.length += remaining;
+        }
+
+        // header names and values are ISO-8859-1, one byte per char
+        private void append(String value) {
+            int valueLength = value.length();
+            this.ensureCapacity(valueLength);
+            for (int i = 0; i < valueLength; i++) {
+                this.buffer[this.length++] = (byte) value.charAt(i);
+            }
+        }
+
+        private void append(long value) {
+            this.ensureCapacity(20);
+            if (value == 0) {
+                this.buffer[this.length++] = '0';
+                return;
+            }
+            int digits = 0;
+            for (long remaining = value; remaining > 0; remaining /= 10) {
+                digits++;
+            }
+            for (int i = this.length + digits - 1; i >= this.length; i--) {
+                this.buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            this.length += digits;
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(this.buffer, 0, this.length);
         }
     }
 
     private String getStatusLine() {
-        String reasonPhrase = HttpResponse.REASON_PHRASES.get(this.statusCode);
+        String reasonPhrase = HttpResponse.REASON_PHRASES.getOrDefault(this.statusCode, "Unknown");
 
         return String.format(
                 "%s %d %s",
@@ -125,11 +401,27 @@ public class HttpResponse {
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append(String.format("%s\r\n", getStatusLine()));
+        if (this.contentType != null) {
+            stringBuilder.append(String.format("Content-Type: %s\r\n", this.contentType.getValue()));
+        }
         for (Map.Entry<String, String> header : this.headers.entrySet()) {
             stringBuilder.append(String.format("%s: %s\r\n", header.getKey(), header.getValue()));
         }
+        if (this.appendedHeaders != null) {
+            for (Map.Entry<String, String> header : this.appendedHeaders) {
+                stringBuilder.append(String.format("%s: %s\r\n", header.getKey(), header.getValue()));
+            }
+        }
         stringBuilder.append("\r\n");
-        if (body == null) {
+        if (fileBody != null) {
+            stringBuilder.append(String.format("<file body> %d bytes of %s\r\n", this.fileBody.getCount(), this.fileBody.getPath()));
+        } else if (bufferBody != null) {
+            stringBuilder.append(String.format("<buffer body> %d bytes\r\n", this.bufferBody.remaining()));
+        } else if (rangesBody != null) {
+            stringBuilder.append(String.format("<ranges body> %d ranges of %s\r\n", this.rangesBody.getRanges().size(), this.rangesBody.getPath()));
+        } else if (streamedBody != null) {
+            stringBuilder.append(this.chunked ? "<chunked body>" : "<streamed body>");
+        } else if (body == null) {
             stringBuilder.append("<no body>");
         } else {
             stringBuilder.append(String.format("<body> %d bytes\r\n", this.body.length));
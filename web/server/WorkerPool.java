@@ -0,0 +1,144 @@
+package web.server;
+
+import web.handler.Handler;
+import web.server.configuration.HttpdConf;
+
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Executes connection handlers according to the configured worker model.
+ * <p>
+ * Supported models (WorkerModel directive):
+ * - pool: a bounded pool of MaxWorkers platform threads in front of a queue of AcceptQueue connections,
+ * connections arriving while both are full are answered with 503 Service Unavailable
+ * - virtual: one virtual thread per connection (requires a JVM with virtual thread support, falls back to pool)
+ */
+public class WorkerPool {
+
+    public enum Model {
+        POOL,
+        VIRTUAL
+    }
+
+    private static final int DEFAULT_MAX_WORKERS = 200;
+    private static final int DEFAULT_ACCEPT_QUEUE = 100;
+    private static final long IDLE_WORKER_TIMEOUT_SECONDS = 60;
+
+    private final Model model;
+    private final ExecutorService executor;
+    private final BlockingQueue<Runnable> queue;
+    private final LongAdder rejectedCount = new LongAdder();
+
+    public WorkerPool(HttpdConf httpdConf) {
+        Model requestedModel = Model.POOL;
+        String workerModel = httpdConf.getWorkerModel().orElse("pool");
+        try {
+            requestedModel = Model.valueOf(workerModel.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.printf("Warning: WorkerPool: Unrecognized worker model %s, using pool%n", workerModel);
+        }
+
+        ExecutorService virtualExecutor = requestedModel == Model.VIRTUAL ? newVirtualThreadExecutor() : null;
+        if (virtualExecutor != null) {
+            this.model = Model.VIRTUAL;
+            this.executor = virtualExecutor;
+            this.queue = null;
+        } else {
+            int maxWorkers = Math.max(1, httpdConf.getMaxWorkers().orElse(DEFAULT_MAX_WORKERS));
+            int acceptQueue = Math.max(1, httpdConf.getAcceptQueue().orElse(DEFAULT_ACCEPT_QUEUE));
+            this.model = Model.POOL;
+            this.queue = new ArrayBlockingQueue<>(acceptQueue);
+            ThreadPoolExecutor poolExecutor = new ThreadPoolExecutor(
+                    maxWorkers,
+                    maxWorkers,
+                    IDLE_WORKER_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS,
+                    this.queue,
+                    new WorkerThreadFactory(),
+                    new ThreadPoolExecutor.AbortPolicy()
+            );
+            poolExecutor.allowCoreThreadTimeOut(true);
+            this.executor = poolExecutor;
+        }
+    }
+
+    /**
+     * Hands the accepted connection to a worker, answering 503 if the pool and its queue are saturated
+     * @param socket accepted client connection
+     */
+    public void submit(Socket socket) {
+        try {
+            this.executor.execute(new Handler(socket));
+        } catch (RejectedExecutionException e) {
+            this.rejectedCount.increment();
+            Handler.writeServiceUnavailable(socket);
+        }
+    }
+
+    /**
+     * Runs a task on a worker, used by engines that hand over whole requests rather than sockets
+     * @param task work to run
+     * @return FALSE if the pool and its queue are saturated and the task was not accepted
+     */
+    public boolean execute(Runnable task) {
+        try {
+            this.executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            this.rejectedCount.increment();
+            return false;
+        }
+    }
+
+    public Model getModel() {
+        return this.model;
+    }
+
+    /**
+     * @return number of accepted connections waiting for a worker, always 0 for the virtual model
+     */
+    public int getQueueDepth() {
+        return this.queue == null ? 0 : this.queue.size();
+    }
+
+    /**
+     * @return number of connections turned away with 503 since start-up
+     */
+    public long getRejectedCount() {
+        return this.rejectedCount.sum();
+    }
+
+    public void shutdown() {
+        this.executor.shutdown();
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor only exists on newer JVMs, so it is looked up reflectively
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Warning: WorkerPool: Virtual threads are not supported by this JVM, using pool");
+            return null;
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "worker-" + this.threadCount.incrementAndGet());
+        }
+    }
+}
@@ -2,59 +2,245 @@ package web.server.configuration;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Parsed AuthUserFile, supports {SHA} and $apr1$ (Apache MD5) password hashes.
+ * <p>
+ * Authorization values that were verified successfully are remembered for CREDENTIAL_CACHE_TTL_MILLIS,
+ * together with the user name they carry, so repeat requests skip the Base64 decoding and hashing. The cache belongs to the instance and is
+ * dropped with it when the file changes.
+ */
 public class HtPassword {
+    private static final String SHA_PREFIX = "{SHA}";
+    private static final String APR1_PREFIX = "$apr1$";
+    private static final String APR1_ALPHABET = "./0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final long CREDENTIAL_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+    private static final int CREDENTIAL_CACHE_MAX_ENTRIES = 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> newMessageDigest("SHA-1"));
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> newMessageDigest("MD5"));
+
+    // shared by all instances so the numbers survive htpasswd reloads
+    private static final LongAdder verifyCount = new LongAdder();
+    private static final LongAdder verifyNanos = new LongAdder();
+    private static final LongAdder cacheHitCount = new LongAdder();
+
+    private static final class VerifiedCredential {
+        private final String user;
+        private final long expiresAt;
+
+        private VerifiedCredential(String user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     private final Map<String, String> passwords;
+    // authorization header value -> user name and expiry time in millis
+    private final Map<String, VerifiedCredential> verifiedCredentials = new ConcurrentHashMap<>();
 
     public HtPassword(List<String> config) {
         this.passwords = new HashMap<>();
         for (String line : config) {
-            String[] tokens = line.split(":");
+            String[] tokens = line.split(":", 2);
             if (tokens.length == 2) {
-                this.passwords.put(tokens[0], tokens[1].replace("{SHA}", "").trim());
+                String hash = tokens[1].trim();
+                if (hash.startsWith(SHA_PREFIX) || hash.startsWith(APR1_PREFIX)) {
+                    this.passwords.put(tokens[0], hash);
+                } else {
+                    System.out.printf("Warning: HtPassword: Unsupported password format for user %s%n", tokens[0]);
+                }
             }
         }
     }
 
     public static String[] tokenizeAuthInfo(String authInfo) {
         authInfo = authInfo.replaceFirst("^Basic ", "");
-        String credentials = new String(
-                Base64.getDecoder().decode(authInfo),
-                StandardCharsets.UTF_8
-        );
-        String[] tokens = credentials.split(":");
-        return tokens;
+        String credentials;
+        try {
+            credentials = new String(
+                    Base64.getDecoder().decode(authInfo),
+                    StandardCharsets.UTF_8
+            );
+        } catch (IllegalArgumentException e) {
+            return new String[0];
+        }
+        // passwords may contain colons, user names may not
+        return credentials.split(":", 2);
     }
 
     public boolean isAuthorized(String authInfo) {
+        return this.getAuthorizedUser(authInfo) != null;
+    }
+
+    /**
+     * @param authInfo value of a Basic Authorization header
+     * @return the user name if the credentials match a user of the file, null otherwise
+     */
+    public String getAuthorizedUser(String authInfo) {
         if (authInfo == null) {
-            return false;
+            return null;
         }
+        VerifiedCredential credential = this.verifiedCredentials.get(authInfo);
+        long now = System.currentTimeMillis();
+        if (credential != null && credential.expiresAt > now) {
+            cacheHitCount.increment();
+            return credential.user;
+        }
+
         String[] tokens = HtPassword.tokenizeAuthInfo(authInfo);
         if (tokens.length != 2) {
-            return false;
+            return null;
         }
-        return verifyPassword(tokens[0], tokens[1]);
+        long start = System.nanoTime();
+        boolean verified = verifyPassword(tokens[0], tokens[1]);
+        verifyNanos.add(System.nanoTime() - start);
+        verifyCount.increment();
+        if (!verified) {
+            return null;
+        }
+        this.remember(authInfo, tokens[0], now);
+        return tokens[0];
+    }
+
+    private void remember(String authInfo, String user, long now) {
+        if (this.verifiedCredentials.size() >= CREDENTIAL_CACHE_MAX_ENTRIES) {
+            this.verifiedCredentials.values().removeIf(credential -> credential.expiresAt <= now);
+            if (this.verifiedCredentials.size() >= CREDENTIAL_CACHE_MAX_ENTRIES) {
+                this.verifiedCredentials.clear();
+            }
+        }
+        this.verifiedCredentials.put(authInfo, new VerifiedCredential(user, now + CREDENTIAL_CACHE_TTL_MILLIS));
     }
 
     private boolean verifyPassword(String username, String password) {
-        if (!passwords.containsKey(username)) {
+        String hash = passwords.get(username);
+        if (hash == null) {
             return false;
         }
-        return passwords.get(username).equals(encryptClearPassword(password));
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        byte[] expected;
+        byte[] actual;
+        if (hash.startsWith(SHA_PREFIX)) {
+            try {
+                expected = Base64.getDecoder().decode(hash.substring(SHA_PREFIX.length()));
+            } catch (IllegalArgumentException e) {
+                return false;
+            }
+            actual = SHA1.get().digest(passwordBytes);
+        } else {
+            expected = hash.getBytes(StandardCharsets.US_ASCII);
+            actual = apr1(passwordBytes, hash).getBytes(StandardCharsets.US_ASCII);
+        }
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Apache's variant of the MD5 based crypt algorithm
+     * @param password clear password bytes
+     * @param hash stored hash, only its salt is used
+     * @return the hash of password in the same $apr1$salt$checksum form as the stored one
+     */
+    private static String apr1(byte[] password, String hash) {
+        int saltEnd = hash.indexOf('$', APR1_PREFIX.length());
+        String salt = hash.substring(APR1_PREFIX.length(), saltEnd == -1 ? hash.length() : saltEnd);
+        if (salt.length() > 8) {
+            salt = salt.substring(0, 8);
+        }
+        byte[] saltBytes = salt.getBytes(StandardCharsets.US_ASCII);
+        MessageDigest md5 = MD5.get();
+
+        md5.update(password);
+        md5.update(saltBytes);
+        md5.update(password);
+        byte[] alternate = md5.digest();
+
+        md5.update(password);
+        md5.update(APR1_PREFIX.getBytes(StandardCharsets.US_ASCII));
+        md5.update(saltBytes);
+        for (int length = password.length; length > 0; length -= 16) {
+            md5.update(alternate, 0, Math.min(length, 16));
+        }
+        for (int i = password.length; i != 0; i >>>= 1) {
+            if ((i & 1) != 0) {
+                md5.update((byte) 0);
+            } else {
+                md5.update(password.length > 0 ? password[0] : 0);
+            }
+        }
+        byte[] result = md5.digest();
+
+        for (int round = 0; round < 1000; round++) {
+            if ((round & 1) != 0) {
+                md5.update(password);
+            } else {
+                md5.update(result);
+            }
+            if (round % 3 != 0) {
+                md5.update(saltBytes);
+            }
+            if (round % 7 != 0) {
+                md5.update(password);
+            }
+            if ((round & 1) != 0) {
+                md5.update(result);
+            } else {
+                md5.update(password);
+            }
+            result = md5.digest();
+        }
+
+        StringBuilder encoded = new StringBuilder(APR1_PREFIX).append(salt).append('$');
+        appendApr1(encoded, result[0], result[6], result[12], 4);
+        appendApr1(encoded, result[1], result[7], result[13], 4);
+        appendApr1(encoded, result[2], result[8], result[14], 4);
+        appendApr1(encoded, result[3], result[9], result[15], 4);
+        appendApr1(encoded, result[4], result[10], result[5], 4);
+        appendApr1(encoded, (byte) 0, (byte) 0, result[11], 2);
+        return encoded.toString();
+    }
+
+    private static void appendApr1(StringBuilder encoded, byte high, byte middle, byte low, int characters) {
+        int value = ((high & 0xff) << 16) | ((middle & 0xff) << 8) | (low & 0xff);
+        for (int i = 0; i < characters; i++) {
+            encoded.append(APR1_ALPHABET.charAt(value & 0x3f));
+            value >>>= 6;
+        }
     }
 
-    private String encryptClearPassword(String password) {
+    private static MessageDigest newMessageDigest(String algorithm) {
         try {
-            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
-            byte[] result = messageDigest.digest(password.getBytes());
-            return Base64.getEncoder().encodeToString(result);
-        } catch (Exception e) {
-            return "";
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
+
+    /**
+     * @return number of passwords hashed and compared, cache hits excluded
+     */
+    public static long getVerifyCount() {
+        return verifyCount.sum();
+    }
+
+    /**
+     * @return total time spent hashing and comparing passwords in nanoseconds
+     */
+    public static long getVerifyNanos() {
+        return verifyNanos.sum();
+    }
+
+    /**
+     * @return number of requests authorized from the verified credential cache
+     */
+    public static long getCacheHitCount() {
+        return cacheHitCount.sum();
+    }
 }
@@ -12,14 +12,64 @@ public class HttpdConf {
     private final String documentRoot;
     private final String logFile;
     private final Map<String, String> scriptAliases;
+    private final Map<String, List<String>> fastCgiServers;
     private final String directoryIndex;
+    private final String workerModel;
+    private final Integer maxWorkers;
+    private final Integer acceptQueue;
+    private final Integer keepAliveTimeout;
+    private final Integer maxKeepAliveRequests;
+    private final String engine;
+    private final Integer eventLoops;
+    private final Long cacheMaxBytes;
+    private final Long cacheMaxFileSize;
+    private final Long maxRequestBodySize;
+    private final Integer accessLogBufferSize;
+    private final String accessLogOverflow;
+    private final String authCacheMode;
+    private final Long compressionMinSize;
+    private final Long compressionMaxFileSize;
+    private final Long compressionCacheMaxBytes;
+    private final Integer cgiTimeout;
+    private final Integer cgiMaxProcesses;
+    private final Integer cgiMaxProcessesPerAlias;
+    private final String reloadPath;
+    private final String metricsPath;
+    private final String addDefaultCharset;
+    private final Long mmapMinFileSize;
+    private final Long mmapMaxBytes;
 
     public HttpdConf(List<String> config) {
         Integer tempListen = null;
         String tempDocumentRoot = null;
         String tempLogFile = null;
         Map<String, String> tempScriptAliases = null;
+        Map<String, List<String>> tempFastCgiServers = null;
         String tempDirectoryIndex = null;
+        String tempWorkerModel = null;
+        Integer tempMaxWorkers = null;
+        Integer tempAcceptQueue = null;
+        Integer tempKeepAliveTimeout = null;
+        Integer tempMaxKeepAliveRequests = null;
+        String tempEngine = null;
+        Integer tempEventLoops = null;
+        Long tempCacheMaxBytes = null;
+        Long tempCacheMaxFileSize = null;
+        Long tempMaxRequestBodySize = null;
+        Integer tempAccessLogBufferSize = null;
+        String tempAccessLogOverflow = null;
+        String tempAuthCacheMode = null;
+        Long tempCompressionMinSize = null;
+        Long tempCompressionMaxFileSize = null;
+        Long tempCompressionCacheMaxBytes = null;
+        Integer tempCgiTimeout = null;
+        Integer tempCgiMaxProcesses = null;
+        Integer tempCgiMaxProcessesPerAlias = null;
+        String tempReloadPath = null;
+        String tempMetricsPath = null;
+        String tempAddDefaultCharset = null;
+        Long tempMmapMinFileSize = null;
+        Long tempMmapMaxBytes = null;
 
         for (String line : config) {
             List<String> tokens = ConfigurationUtils.splitConfigurationLineIntoTokens(line);
@@ -34,7 +84,37 @@ public class HttpdConf {
                     }
                     tempScriptAliases.put(tokens.get(1), tokens.get(2));
                 }
+                case "FASTCGISERVER" -> {
+                    if (tempFastCgiServers == null) {
+                        tempFastCgiServers = new HashMap<>();
+                    }
+                    tempFastCgiServers.put(tokens.get(1), List.copyOf(tokens.subList(2, tokens.size())));
+                }
                 case "DIRECTORYINDEX" -> tempDirectoryIndex = tokens.get(1);
+                case "WORKERMODEL" -> tempWorkerModel = tokens.get(1);
+                case "MAXWORKERS" -> tempMaxWorkers = Integer.parseInt(tokens.get(1));
+                case "ACCEPTQUEUE" -> tempAcceptQueue = Integer.parseInt(tokens.get(1));
+                case "KEEPALIVETIMEOUT" -> tempKeepAliveTimeout = Integer.parseInt(tokens.get(1));
+                case "MAXKEEPALIVEREQUESTS" -> tempMaxKeepAliveRequests = Integer.parseInt(tokens.get(1));
+                case "ENGINE" -> tempEngine = tokens.get(1);
+                case "EVENTLOOPS" -> tempEventLoops = Integer.parseInt(tokens.get(1));
+                case "CACHEMAXBYTES" -> tempCacheMaxBytes = Long.parseLong(tokens.get(1));
+                case "CACHEMAXFILESIZE" -> tempCacheMaxFileSize = Long.parseLong(tokens.get(1));
+                case "MAXREQUESTBODYSIZE" -> tempMaxRequestBodySize = Long.parseLong(tokens.get(1));
+                case "ACCESSLOGBUFFERSIZE" -> tempAccessLogBufferSize = Integer.parseInt(tokens.get(1));
+                case "ACCESSLOGOVERFLOW" -> tempAccessLogOverflow = tokens.get(1);
+                case "AUTHCACHEMODE" -> tempAuthCacheMode = tokens.get(1);
+                case "COMPRESSIONMINSIZE" -> tempCompressionMinSize = Long.parseLong(tokens.get(1));
+                case "COMPRESSIONMAXFILESIZE" -> tempCompressionMaxFileSize = Long.parseLong(tokens.get(1));
+                case "COMPRESSIONCACHEMAXBYTES" -> tempCompressionCacheMaxBytes = Long.parseLong(tokens.get(1));
+                case "CGITIMEOUT" -> tempCgiTimeout = Integer.parseInt(tokens.get(1));
+                case "CGIMAXPROCESSES" -> tempCgiMaxProcesses = Integer.parseInt(tokens.get(1));
+                case "CGIMAXPROCESSESPERALIAS" -> tempCgiMaxProcessesPerAlias = Integer.parseInt(tokens.get(1));
+                case "RELOADPATH" -> tempReloadPath = tokens.get(1);
+                case "METRICSPATH" -> tempMetricsPath = tokens.get(1);
+                case "ADDDEFAULTCHARSET" -> tempAddDefaultCharset = tokens.get(1);
+                case "MMAPMINFILESIZE" -> tempMmapMinFileSize = Long.parseLong(tokens.get(1));
+                case "MMAPMAXBYTES" -> tempMmapMaxBytes = Long.parseLong(tokens.get(1));
                 default ->
                     System.out.printf("Warning: HttpdConfiguration: Unrecognized or unsupported directive: %s%n", directive);
             }
@@ -44,7 +124,32 @@ public class HttpdConf {
         documentRoot = tempDocumentRoot;
         logFile = tempLogFile;
         scriptAliases = tempScriptAliases;
+        fastCgiServers = tempFastCgiServers;
         directoryIndex = tempDirectoryIndex;
+        workerModel = tempWorkerModel;
+        maxWorkers = tempMaxWorkers;
+        acceptQueue = tempAcceptQueue;
+        keepAliveTimeout = tempKeepAliveTimeout;
+        maxKeepAliveRequests = tempMaxKeepAliveRequests;
+        engine = tempEngine;
+        eventLoops = tempEventLoops;
+        cacheMaxBytes = tempCacheMaxBytes;
+        cacheMaxFileSize = tempCacheMaxFileSize;
+        maxRequestBodySize = tempMaxRequestBodySize;
+        accessLogBufferSize = tempAccessLogBufferSize;
+        accessLogOverflow = tempAccessLogOverflow;
+        authCacheMode = tempAuthCacheMode;
+        compressionMinSize = tempCompressionMinSize;
+        compressionMaxFileSize = tempCompressionMaxFileSize;
+        compressionCacheMaxBytes = tempCompressionCacheMaxBytes;
+        cgiTimeout = tempCgiTimeout;
+        cgiMaxProcesses = tempCgiMaxProcesses;
+        cgiMaxProcessesPerAlias = tempCgiMaxProcessesPerAlias;
+        reloadPath = tempReloadPath;
+        metricsPath = tempMetricsPath;
+        addDefaultCharset = tempAddDefaultCharset;
+        mmapMinFileSize = tempMmapMinFileSize;
+        mmapMaxBytes = tempMmapMaxBytes;
     }
 
     public Optional<Integer> getListen() {
@@ -63,7 +168,107 @@ public class HttpdConf {
         return Optional.ofNullable(scriptAliases);
     }
 
+    public Optional<Map<String, List<String>>> getFastCgiServers() {
+        return Optional.ofNullable(fastCgiServers);
+    }
+
     public Optional<String> getDirectoryIndex() {
         return Optional.ofNullable(directoryIndex);
     }
+
+    public Optional<String> getWorkerModel() {
+        return Optional.ofNullable(workerModel);
+    }
+
+    public Optional<Integer> getMaxWorkers() {
+        return Optional.ofNullable(maxWorkers);
+    }
+
+    public Optional<Integer> getAcceptQueue() {
+        return Optional.ofNullable(acceptQueue);
+    }
+
+    public Optional<Integer> getKeepAliveTimeout() {
+        return Optional.ofNullable(keepAliveTimeout);
+    }
+
+    public Optional<Integer> getMaxKeepAliveRequests() {
+        return Optional.ofNullable(maxKeepAliveRequests);
+    }
+
+    public Optional<String> getEngine() {
+        return Optional.ofNullable(engine);
+    }
+
+    public Optional<Integer> getEventLoops() {
+        return Optional.ofNullable(eventLoops);
+    }
+
+    public Optional<Long> getCacheMaxBytes() {
+        return Optional.ofNullable(cacheMaxBytes);
+    }
+
+    public Optional<Long> getCacheMaxFileSize() {
+        return Optional.ofNullable(cacheMaxFileSize);
+    }
+
+    public Optional<Long> getMaxRequestBodySize() {
+        return Optional.ofNullable(maxRequestBodySize);
+    }
+
+    public Optional<Integer> getAccessLogBufferSize() {
+        return Optional.ofNullable(accessLogBufferSize);
+    }
+
+    public Optional<String> getAccessLogOverflow() {
+        return Optional.ofNullable(accessLogOverflow);
+    }
+
+    public Optional<String> getAuthCacheMode() {
+        return Optional.ofNullable(authCacheMode);
+    }
+
+    public Optional<Long> getCompressionMinSize() {
+        return Optional.ofNullable(compressionMinSize);
+    }
+
+    public Optional<Long> getCompressionMaxFileSize() {
+        return Optional.ofNullable(compressionMaxFileSize);
+    }
+
+    public Optional<Long> getCompressionCacheMaxBytes() {
+        return Optional.ofNullable(compressionCacheMaxBytes);
+    }
+
+    public Optional<Integer> getCgiTimeout() {
+        return Optional.ofNullable(cgiTimeout);
+    }
+
+    public Optional<Integer> getCgiMaxProcesses() {
+        return Optional.ofNullable(cgiMaxProcesses);
+    }
+
+    public Optional<Integer> getCgiMaxProcessesPerAlias() {
+        return Optional.ofNullable(cgiMaxProcessesPerAlias);
+    }
+
+    public Optional<String> getReloadPath() {
+        return Optional.ofNullable(reloadPath);
+    }
+
+    public Optional<String> getMetricsPath() {
+        return Optional.ofNullable(metricsPath);
+    }
+
+    public Optional<String> getAddDefaultCharset() {
+        return Optional.ofNullable(addDefaultCharset);
+    }
+
+    public Optional<Long> getMmapMinFileSize() {
+        return Optional.ofNullable(mmapMinFileSize);
+    }
+
+    public Optional<Long> getMmapMaxBytes() {
+        return Optional.ofNullable(mmapMaxBytes);
+    }
 }
@@ -2,33 +2,166 @@ package web.server.configuration;
 
 import web.server.configuration.utils.ConfigurationUtils;
 
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 
+/**
+ * Table of media types by file extension, compiled from mime.types.
+ * <p>
+ * Extensions are matched case-insensitively and may span several dots (e.g. "tar.gz"), the longest
+ * configured suffix of a file name wins. Every media type is resolved once into a {@link ContentType}
+ * holding its encoded header line, text types get the AddDefaultCharset charset if one is set. Only
+ * types of configured extensions are compressible, the DEFAULT_MIME_TYPE of unknown files is not.
+ */
 public class MimeTypes {
+
+    public static final String DEFAULT_MIME_TYPE = "text/text";
+
+    /**
+     * A media type ready to be sent
+     */
+    public static final class ContentType {
+        private final String value;
+        private final byte[] headerBytes;
+        private final boolean compressible;
+
+        private ContentType(String value, boolean compressible) {
+            this.value = value;
+            this.headerBytes = ("Content-Type: " + value + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            this.compressible = compressible;
+        }
+
+        /**
+         * @return media type with its parameters, e.g. "text/html; charset=utf-8"
+         */
+        public String getValue() {
+            return this.value;
+        }
+
+        /**
+         * @return the encoded "Content-Type: ...\r\n" header line, shared and not to be modified
+         */
+        public byte[] getHeaderBytes() {
+            return this.headerBytes;
+        }
+
+        public boolean isCompressible() {
+            return this.compressible;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ContentType contentType && this.value.equals(contentType.value);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.value.hashCode();
+        }
+    }
+
     private final Map<String, String> mimeTypes;
+    private final Map<String, ContentType> contentTypes;
+    private final ContentType defaultContentType;
+    // most dots within one configured extension, limits the suffixes tried for a file name
+    private final int maxExtensionDots;
 
     public MimeTypes(List<String> config) {
-        mimeTypes = new HashMap<>();
+        this(config, null);
+    }
+
+    /**
+     * @param config lines of mime.types
+     * @param defaultCharset AddDefaultCharset value: a charset, "On" for iso-8859-1, "Off" or null for none
+     */
+    public MimeTypes(List<String> config, String defaultCharset) {
+        Map<String, String> mimeTypes = new HashMap<>();
         for (String line : config) {
             List<String> tokens = ConfigurationUtils.splitConfigurationLineIntoTokens(line);
             Iterator<String> iterator = tokens.iterator();
             String mimeType = iterator.next();
             while (iterator.hasNext()) {
                 String extension = iterator.next();
-                mimeTypes.put(extension, mimeType);
+                mimeTypes.put(extension.toLowerCase(Locale.ROOT), mimeType);
             }
         }
+
+        String charset = defaultCharset == null || defaultCharset.equalsIgnoreCase("off") ? null
+                : defaultCharset.equalsIgnoreCase("on") ? "iso-8859-1" : defaultCharset;
+        // extensions of the same type share one instance
+        Map<String, ContentType> byMimeType = new HashMap<>();
+        Map<String, ContentType> contentTypes = new HashMap<>();
+        int maxExtensionDots = 0;
+        for (Map.Entry<String, String> mimeType : mimeTypes.entrySet()) {
+            contentTypes.put(mimeType.getKey(), byMimeType.computeIfAbsent(mimeType.getValue(), type -> new ContentType(withCharset(type, charset), isCompressible(type))));
+            maxExtensionDots = Math.max(maxExtensionDots, (int) mimeType.getKey().chars().filter(c -> c == '.').count());
+        }
+        this.mimeTypes = Map.copyOf(mimeTypes);
+        this.contentTypes = Map.copyOf(contentTypes);
+        // files without a configured extension may be anything, they are never compressed
+        this.defaultContentType = new ContentType(withCharset(DEFAULT_MIME_TYPE, charset), false);
+        this.maxExtensionDots = maxExtensionDots;
     }
 
+    private static String withCharset(String mimeType, String charset) {
+        if (charset == null || !mimeType.regionMatches(true, 0, "text/", 0, 5) || mimeType.indexOf(';') != -1) {
+            return mimeType;
+        }
+        return mimeType + "; charset=" + charset;
+    }
+
+    /**
+     * @return configured media types by lower case extension
+     */
     public Map<String, String> getMimeTypes() {
         return mimeTypes;
     }
 
     public Optional<String> getMimeTypeForExtension(String extension) {
-        return Optional.ofNullable(mimeTypes.get(extension));
+        return Optional.ofNullable(mimeTypes.get(extension.toLowerCase(Locale.ROOT)));
+    }
+
+    /**
+     * @param fileName name of a file without its directory
+     * @return content type of the longest configured extension the name ends with, DEFAULT_MIME_TYPE if there is none
+     */
+    public ContentType getContentType(String fileName) {
+        int first = fileName.length();
+        for (int dots = 0; dots <= this.maxExtensionDots && first > 0; dots++) {
+            int dot = fileName.lastIndexOf('.', first - 1);
+            if (dot == -1) {
+                break;
+            }
+            first = dot;
+        }
+        for (int dot = first; dot != -1 && dot < fileName.length(); dot = fileName.indexOf('.', dot + 1)) {
+            ContentType contentType = this.contentTypes.get(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (contentType != null) {
+                return contentType;
+            }
+        }
+        return this.defaultContentType;
+    }
+
+    /**
+     * @param mimeType a MIME type, parameters are ignored
+     * @return TRUE for textual types that are worth compressing (text, JavaScript, JSON, XML and their +json/+xml variants)
+     */
+    public static boolean isCompressible(String mimeType) {
+        int parameters = mimeType.indexOf(';');
+        String type = (parameters == -1 ? mimeType : mimeType.substring(0, parameters)).trim().toLowerCase();
+        return type.startsWith("text/")
+                || type.endsWith("+xml")
+                || type.endsWith("+json")
+                || type.equals("application/json")
+                || type.equals("application/javascript")
+                || type.equals("application/x-javascript")
+                || type.equals("application/ecmascript")
+                || type.equals("application/xml");
     }
 }
@@ -0,0 +1,57 @@
+package web.server.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking InputStream view of a non-blocking SocketChannel, used by worker threads to read request bodies
+ * while the event loop has stopped reading the connection. Waits on a temporary selector when no bytes are available.
+ */
+public class ChannelInputStream extends InputStream {
+
+    private static final long READ_TIMEOUT_MILLIS = 30_000;
+
+    private final SocketChannel channel;
+    private final long timeoutMillis;
+
+    public ChannelInputStream(SocketChannel channel) {
+        this(channel, READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param channel non-blocking channel
+     * @param timeoutMillis how long a read may wait for the channel before failing with a SocketTimeoutException
+     */
+    public ChannelInputStream(SocketChannel channel, long timeoutMillis) {
+        this.channel = channel;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int read = this.read(single, 0, 1);
+        return read == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        int read;
+        while ((read = this.channel.read(buffer)) == 0) {
+            TemporarySelectors.await(this.channel, SelectionKey.OP_READ, this.timeoutMillis);
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,60 @@
+package web.server.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Blocking OutputStream view of a non-blocking SocketChannel, used by worker threads to write responses.
+ * When the socket send buffer is full the writer waits on a temporary selector instead of spinning.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    private static final long WRITE_TIMEOUT_MILLIS = 30_000;
+
+    private final SocketChannel channel;
+    private final long timeoutMillis;
+
+    public ChannelOutputStream(SocketChannel channel) {
+        this(channel, WRITE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param channel non-blocking channel
+     * @param timeoutMillis how long a write may wait for the channel before failing with a SocketTimeoutException
+     */
+    public ChannelOutputStream(SocketChannel channel, long timeoutMillis) {
+        this.channel = channel;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.write(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer, waiting for the channel to drain when needed
+     * @param buffer bytes to write
+     * @throws IOException if the client disconnects or does not read within the write timeout
+     */
+    public void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.write(buffer) == 0) {
+                TemporarySelectors.await(this.channel, SelectionKey.OP_WRITE, this.timeoutMillis);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
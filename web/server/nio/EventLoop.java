@@ -0,0 +1,124 @@
+package web.server.nio;
+
+import web.server.WorkerPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single threaded selector loop reading requests for the connections assigned to it.
+ * All reads go through one reusable direct buffer, completed requests are handed to the worker pool.
+ */
+class EventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final Selector selector;
+    private final WorkerPool workerPool;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    EventLoop(WorkerPool workerPool) throws IOException {
+        this.selector = Selector.open();
+        this.workerPool = workerPool;
+    }
+
+    /**
+     * Adopts a newly accepted connection, may be called from any thread
+     * @param channel non-blocking client channel
+     */
+    void register(SocketChannel channel) {
+        this.tasks.add(() -> {
+            NioConnection connection = new NioConnection(channel, this);
+            try {
+                connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                connection.close();
+            }
+        });
+        this.selector.wakeup();
+    }
+
+    /**
+     * Returns a connection to this loop once a worker has finished with it, may be called from any thread
+     * @param connection connection to read the next request from
+     */
+    void resume(NioConnection connection) {
+        this.tasks.add(() -> {
+            connection.setProcessing(false);
+            connection.setLastActivity(System.currentTimeMillis());
+            if (connection.getKey().isValid()) {
+                connection.getKey().interestOps(SelectionKey.OP_READ);
+            }
+        });
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        while (this.selector.isOpen()) {
+            try {
+                this.selector.select(SWEEP_INTERVAL_MILLIS);
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        this.read((NioConnection) key.attachment());
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    this.closeIdleConnections(now);
+                    lastSweep = now;
+                }
+            } catch (IOException e) {
+                System.out.println("Error in event loop:");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void read(NioConnection connection) {
+        try {
+            if (connection.read(this.readBuffer) == -1) {
+                connection.close();
+                return;
+            }
+        } catch (IOException e) {
+            connection.close();
+            return;
+        }
+
+        if (connection.isRequestComplete()) {
+            // stop reading until the worker is done so requests on one connection are answered in order
+            connection.getKey().interestOps(0);
+            connection.setProcessing(true);
+            if (!this.workerPool.execute(connection)) {
+                connection.rejectAndClose();
+            }
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : this.selector.keys()) {
+            NioConnection connection = (NioConnection) key.attachment();
+            if (connection != null && !connection.isProcessing()
+                    && now - connection.getLastActivity() > connection.getKeepAliveTimeout() * 1000L) {
+                connection.close();
+            }
+        }
+    }
+}
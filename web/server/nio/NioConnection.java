@@ -0,0 +1,151 @@
+package web.server.nio;
+
+import web.handler.Handler;
+import web.metrics.MetricsRegistry;
+import web.request.HttpRequestParser;
+import web.response.HttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * State of one client connection served by the NIO engine.
+ * <p>
+ * The owning event loop feeds bytes read from the channel into the connection's HttpRequestParser
+ * until a complete request is parsed, then hands the connection to a worker which runs the requests
+ * through the regular Handler. Reads are suspended while a worker owns the connection, so the
+ * parser is only ever touched by one thread at a time.
+ */
+class NioConnection implements Runnable {
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final Handler handler;
+    private final HttpRequestParser parser;
+    private SelectionKey key;
+    private long lastActivity;
+    private volatile boolean processing;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection(SocketChannel channel, EventLoop eventLoop) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.handler = new Handler(channel, new ChannelOutputStream(channel));
+        // request bodies are read by the worker straight from the channel, not through the event loop
+        this.parser = new HttpRequestParser(new ChannelInputStream(channel), this.handler.getMaxRequestBodySize());
+        this.lastActivity = System.currentTimeMillis();
+        MetricsRegistry.getInstance().connectionOpened();
+    }
+
+    /**
+     * Serves every complete request buffered for this connection, runs on a worker thread
+     */
+    @Override
+    public void run() {
+        try {
+            boolean keepAlive;
+            do {
+                keepAlive = this.handler.serve(this.parser.takeRequest());
+            } while (keepAlive && this.parser.advance() && this.channel.isOpen());
+
+            if (keepAlive && this.channel.isOpen()) {
+                this.parser.releaseIfIdle();
+                this.eventLoop.resume(this);
+            } else {
+                this.close();
+            }
+        } catch (Exception e) {
+            System.out.println("Error while handling request:");
+            e.printStackTrace();
+            this.close();
+        }
+    }
+
+    /**
+     * Reads what the channel has available through the event loop's shared buffer
+     * @param readBuffer reusable buffer owned by the event loop
+     * @return number of bytes read, -1 if the client closed the connection
+     * @throws IOException if the read fails
+     */
+    int read(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        readBuffer.limit(Math.min(readBuffer.capacity(), this.parser.remainingCapacity()));
+        int read = this.channel.read(readBuffer);
+        if (read > 0) {
+            readBuffer.flip();
+            this.parser.feed(readBuffer);
+            this.lastActivity = System.currentTimeMillis();
+        }
+        return read;
+    }
+
+    /**
+     * @return TRUE once a complete (or rejected) request has been parsed
+     */
+    boolean isRequestComplete() {
+        return this.parser.advance();
+    }
+
+    /**
+     * Answers with 503 Service Unavailable when no worker could take the request, best effort without blocking
+     */
+    void rejectAndClose() {
+        HttpResponse response = new HttpResponse();
+        response.setStatusCode(503);
+        response.addHeader("Connection", "close");
+        response.addHeader("Retry-After", "1");
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            response.writeResponse(outputStream);
+            this.channel.write(ByteBuffer.wrap(outputStream.toByteArray()));
+        } catch (IOException ignored) {
+        } finally {
+            this.close();
+        }
+    }
+
+    void close() {
+        if (this.closed.compareAndSet(false, true)) {
+            MetricsRegistry.getInstance().connectionClosed();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    SelectionKey getKey() {
+        return this.key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    long getLastActivity() {
+        return this.lastActivity;
+    }
+
+    void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    boolean isProcessing() {
+        return this.processing;
+    }
+
+    void setProcessing(boolean processing) {
+        this.processing = processing;
+    }
+
+    int getKeepAliveTimeout() {
+        return this.handler.getKeepAliveTimeout();
+    }
+}
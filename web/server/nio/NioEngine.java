@@ -0,0 +1,54 @@
+package web.server.nio;
+
+import web.server.WorkerPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server engine (Engine nio).
+ * <p>
+ * Connections are accepted on the calling thread and spread round robin over a small set of
+ * selector based event loops (EventLoops, one per core by default). Idle and slow clients only
+ * cost a selection key, worker threads are only used while a complete request is being answered.
+ */
+public class NioEngine {
+
+    private final int port;
+    private final EventLoop[] eventLoops;
+
+    public NioEngine(int port, int eventLoopCount, WorkerPool workerPool) throws IOException {
+        this.port = port;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new EventLoop(workerPool);
+        }
+    }
+
+    /**
+     * Starts the event loops and accepts connections until the server channel fails
+     * @throws IOException if the port cannot be bound
+     */
+    public void run() throws IOException {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(this.port));
+            for (int i = 0; i < this.eventLoops.length; i++) {
+                Thread thread = new Thread(this.eventLoops[i], "event-loop-" + (i + 1));
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                this.eventLoops[next].register(channel);
+                next = (next + 1) % this.eventLoops.length;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package web.server.nio;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Lets worker threads wait for a non-blocking channel to become readable or writable without
+ * involving the event loop that owns it. A channel may be registered with several selectors,
+ * so the worker registers it with a short lived selector borrowed from a shared pool.
+ */
+public final class TemporarySelectors {
+
+    private static final ConcurrentLinkedQueue<Selector> POOL = new ConcurrentLinkedQueue<>();
+
+    private TemporarySelectors() {}
+
+    /**
+     * Blocks until the channel is ready for the requested operation
+     * @param channel non-blocking channel
+     * @param operation SelectionKey.OP_READ or SelectionKey.OP_WRITE
+     * @param timeoutMillis maximum time to wait
+     * @throws SocketTimeoutException if the channel is not ready in time
+     * @throws IOException if the channel or selector fails
+     */
+    public static void await(SelectableChannel channel, int operation, long timeoutMillis) throws IOException {
+        Selector selector = POOL.poll();
+        if (selector == null) {
+            selector = Selector.open();
+        }
+        SelectionKey key = null;
+        try {
+            key = channel.register(selector, operation);
+            if (selector.select(timeoutMillis) == 0) {
+                throw new SocketTimeoutException("Timed out waiting for client connection");
+            }
+        } finally {
+            if (key != null) {
+                key.cancel();
+            }
+            // deregisters the cancelled key so the selector can be reused for another channel
+            selector.selectNow();
+            POOL.offer(selector);
+        }
+    }
+}